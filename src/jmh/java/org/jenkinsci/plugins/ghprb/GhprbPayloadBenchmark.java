@@ -0,0 +1,64 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.github.GHEventPayload;
+import org.kohsuke.github.GitHub;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of webhook payloads the way {@link GhprbRootAction} does it, on payloads of the size GitHub
+ * sends.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GhprbPayloadBenchmark {
+
+	private GitHub gh;
+	private String pullRequest;
+	private String issueComment;
+
+	@Setup
+	public void setup() throws IOException{
+		gh = GitHub.connectAnonymously();
+		pullRequest = read("pull_request.json");
+		issueComment = read("issue_comment.json");
+	}
+
+	private static String read(String name) throws IOException{
+		InputStream in = GhprbPayloadBenchmark.class.getResourceAsStream(name);
+		try{
+			return IOUtils.toString(in, "UTF-8");
+		}finally{
+			in.close();
+		}
+	}
+
+	@Benchmark
+	public GHEventPayload.PullRequest pullRequest() throws IOException{
+		return gh.parseEventPayload(new StringReader(pullRequest), GHEventPayload.PullRequest.class);
+	}
+
+	@Benchmark
+	public GHEventPayload.IssueComment issueComment() throws IOException{
+		return gh.parseEventPayload(new StringReader(issueComment), GHEventPayload.IssueComment.class);
+	}
+}
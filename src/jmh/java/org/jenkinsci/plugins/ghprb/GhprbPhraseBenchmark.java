@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matching of the default phrases against comments of {@code size} characters with the phrase at the
+ * start, at the end or missing. Every comment of every pull request goes through these.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GhprbPhraseBenchmark {
+
+	@Param({"100", "10000", "100000"})
+	public int size;
+
+	@Param({"start", "end", "none"})
+	public String position;
+
+	private Ghprb ghprb;
+	private String okToTestComment;
+	private String triggerComment;
+
+	@Setup
+	public void setup(){
+		ghprb = new Ghprb(".*ok\\W+to\\W+test.*", ".*force\\W+rebuild.*", "retest this please");
+		okToTestComment = comment("ok to test");
+		triggerComment = comment("retest this please");
+	}
+
+	// a single line, the default patterns don't match across lines
+	private String comment(String phrase){
+		StringBuilder sb = new StringBuilder(size + phrase.length());
+		if("start".equals(position)) sb.append(phrase).append(' ');
+		String filler = "Looks good to me, but please have a look at the error handling in the parser. ";
+		while(sb.length() < size){
+			sb.append(filler);
+		}
+		sb.setLength(size);
+		if("end".equals(position)) sb.append(' ').append(phrase);
+		return sb.toString();
+	}
+
+	@Benchmark
+	public boolean okToTestPhrase(){
+		return ghprb.isOktotestPhrase(okToTestComment);
+	}
+
+	@Benchmark
+	public boolean triggerPhrase(){
+		return ghprb.isTriggerPhrase(triggerComment);
+	}
+}
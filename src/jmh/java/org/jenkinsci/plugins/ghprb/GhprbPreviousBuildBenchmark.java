@@ -0,0 +1,79 @@
+package org.jenkinsci.plugins.ghprb;
+
+import hudson.model.Actionable;
+import hudson.model.CauseAction;
+import hudson.model.ParametersAction;
+import hudson.model.StringParameterValue;
+import hudson.plugins.git.util.BuildData;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link GhprbBuilds#findPreviousBuildForPullId} on a history of {@code depth} builds of other pull
+ * requests, followed by the build of the looked up one. A new pull request scans the whole history.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GhprbPreviousBuildBenchmark {
+
+	@Param({"10", "1000", "10000"})
+	public int depth;
+
+	private List<Actionable> builds;
+
+	@Setup
+	public void setup(){
+		builds = new ArrayList<Actionable>(depth + 1);
+		// newest first, like Job.getBuilds()
+		for(int i = 0; i < depth; i++){
+			builds.add(build(1 + i % 500));
+		}
+		builds.add(build(1000));
+	}
+
+	private static Actionable build(int pullId){
+		String commit = String.format("%040x", pullId);
+		Actionable build = new Actionable() {
+			public String getDisplayName() {
+				return "build";
+			}
+
+			public String getSearchUrl() {
+				return "build";
+			}
+		};
+		build.addAction(new CauseAction(new GhprbCause(commit, pullId, true, "master",
+				"9049f1265b7d61be4a8904a9a27120d2064dab3b", "user@example.com", "Pull request number " + pullId)));
+		build.addAction(new ParametersAction(new StringParameterValue("sha1", "origin/pr/" + pullId + "/merge")));
+		build.addAction(new BuildData());
+		return build;
+	}
+
+	@Benchmark
+	public BuildData existingPullRequest(){
+		return GhprbBuilds.findPreviousBuildForPullId(builds, 1000);
+	}
+
+	@Benchmark
+	public BuildData newPullRequest(){
+		return GhprbBuilds.findPreviousBuildForPullId(builds, 1001);
+	}
+}
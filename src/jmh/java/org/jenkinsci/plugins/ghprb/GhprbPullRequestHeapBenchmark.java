@@ -0,0 +1,125 @@
+package org.jenkinsci.plugins.ghprb;
+
+import hudson.util.XStream2;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.kohsuke.github.GHUser;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Heap retained by the pull requests of {@code jobs} jobs with {@code pullsPerJob} pull requests each,
+ * loaded from the same configuration into {@link GhprbPullRequestMap} ({@code compact}) or into hash
+ * maps of pull requests with their former fields, an embedded {@link GHUser} and a {@link Date}
+ * ({@code legacy}). The result is the {@code retainedBytes} counter, the time is only of the loading.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GhprbPullRequestHeapBenchmark {
+
+	@Param({"300"})
+	public int jobs;
+
+	@Param({"70"})
+	public int pullsPerJob;
+
+	@Param({"legacy", "compact"})
+	public String index;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Heap {
+		public long retainedBytes;
+	}
+
+	/**
+	 * Pull request as it was kept before {@link GhprbPullRequestMap}.
+	 */
+	static class LegacyPullRequest {
+		private int id;
+		private String title;
+		private GHUser author;
+		private Date updated;
+		private String head;
+		private String baseSha;
+		private boolean mergeable;
+		private String reponame;
+		private String target;
+		private String authorEmail;
+		private boolean shouldRun;
+		private boolean accepted;
+		private boolean triggered;
+		private boolean forceRebuild;
+		private long summaryCommentId;
+	}
+
+	private XStream2 xstream;
+	private String[][] xml;
+	// keeps the previous result reachable until the next one is measured
+	private Object loaded;
+
+	@Setup
+	public void setup(){
+		xstream = new XStream2();
+		if("legacy".equals(index)){
+			xstream.alias("org.jenkinsci.plugins.ghprb.GhprbPullRequest", LegacyPullRequest.class);
+		}
+		xml = new String[jobs][pullsPerJob];
+		for(int i = 0; i < jobs; i++){
+			for(int id = 1; id <= pullsPerJob; id++){
+				xml[i][id - 1] = GhprbSerializationBenchmark.pullRequestXml(i, id);
+			}
+		}
+	}
+
+	@Benchmark
+	public Object load(Heap heap){
+		loaded = null;
+		long before = usedHeap();
+		Map<String,Map<Integer,?>> ret = new ConcurrentHashMap<String,Map<Integer,?>>();
+		for(int i = 0; i < jobs; i++){
+			if("legacy".equals(index)){
+				Map<Integer,LegacyPullRequest> job = new ConcurrentHashMap<Integer,LegacyPullRequest>();
+				for(int id = 1; id <= pullsPerJob; id++){
+					job.put(id, (LegacyPullRequest) xstream.fromXML(xml[i][id - 1]));
+				}
+				ret.put("job-" + i, job);
+			}else{
+				Map<Integer,GhprbPullRequest> job = new GhprbPullRequestMap();
+				for(int id = 1; id <= pullsPerJob; id++){
+					job.put(id, (GhprbPullRequest) xstream.fromXML(xml[i][id - 1]));
+				}
+				ret.put("job-" + i, job);
+			}
+		}
+		heap.retainedBytes = usedHeap() - before;
+		loaded = ret;
+		return ret;
+	}
+
+	private static long usedHeap(){
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 3; i++){
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
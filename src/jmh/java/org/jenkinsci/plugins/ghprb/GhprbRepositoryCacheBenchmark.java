@@ -0,0 +1,88 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Routing of webhooks: {@link GhprbRepositoryCache#getRepoSet(String)} of a cache filled with
+ * {@code repos} repositories built by {@code jobsPerRepo} jobs each, read by one and by many threads.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GhprbRepositoryCacheBenchmark {
+	// keeps the level set below, loggers are held weakly
+	private static final Logger cacheLogger = Logger.getLogger(GhprbRepositoryCache.class.getName());
+
+	@Param({"50", "1000"})
+	public int repos;
+
+	@Param({"1", "10"})
+	public int jobsPerRepo;
+
+	private GhprbRepositoryCache cache;
+	private String[] names;
+
+	@Setup
+	public void setup(){
+		// every lookup logs on INFO, don't measure the console
+		cacheLogger.setLevel(Level.WARNING);
+		cache = GhprbRepositoryCache.get();
+		names = new String[repos];
+		for(int i = 0; i < repos; i++){
+			names[i] = "organization/repository-" + i;
+			for(int j = 0; j < jobsPerRepo; j++){
+				GhprbRepository repo = new GhprbRepository("organization", "repository-" + i, null, Collections.<Integer,GhprbPullRequest>emptyMap());
+				cache.put(names[i], "job-" + j + "-of-" + i, repo);
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Reader {
+		private int next = 0;
+
+		String next(String[] names){
+			next = (next + 7) % names.length;
+			return names[next];
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public Set<GhprbRepository> singleReader(Reader reader){
+		return cache.getRepoSet(reader.next(names));
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Set<GhprbRepository> concurrentReaders(Reader reader){
+		return cache.getRepoSet(reader.next(names));
+	}
+
+	@Benchmark
+	@Threads(8)
+	public Set<GhprbRepository> concurrentReadersOfUnknownRepo(){
+		return cache.getRepoSet("organization/unknown");
+	}
+}
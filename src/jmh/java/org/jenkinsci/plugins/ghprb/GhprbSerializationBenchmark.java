@@ -0,0 +1,93 @@
+package org.jenkinsci.plugins.ghprb;
+
+import hudson.util.XStream2;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saving and loading of the pull requests kept by {@link GhprbTrigger.DescriptorImpl}, which make up
+ * nearly all of its configuration file. The descriptor itself needs a running Jenkins, so its map of
+ * jobs is (de)serialized by the same XStream Jenkins uses.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GhprbSerializationBenchmark {
+
+	@Param({"10"})
+	public int jobs;
+
+	@Param({"1000"})
+	public int pullsPerJob;
+
+	private XStream2 xstream;
+	private Map<String,Map<Integer,GhprbPullRequest>> pulls;
+	private String xml;
+
+	@Setup
+	public void setup(){
+		xstream = new XStream2();
+		pulls = new ConcurrentHashMap<String,Map<Integer,GhprbPullRequest>>();
+		for(int i = 0; i < jobs; i++){
+			Map<Integer,GhprbPullRequest> job = new GhprbPullRequestMap();
+			for(int id = 1; id <= pullsPerJob; id++){
+				// pull requests can't be created without GitHub, load them the way Jenkins does, from the
+				// format saved before GHUser and Date were dropped, so the migration is covered too
+				job.put(id, (GhprbPullRequest) xstream.fromXML(pullRequestXml(i, id)));
+			}
+			pulls.put("job-" + i, job);
+		}
+		xml = xstream.toXML(pulls);
+	}
+
+	static String pullRequestXml(int job, int id){
+		String sha = String.format("%040x", (long) job * 100000 + id);
+		return "<org.jenkinsci.plugins.ghprb.GhprbPullRequest>"
+				+ "<id>" + id + "</id>"
+				+ "<title>Pull request number " + id + " changing the repository check</title>"
+				+ "<author><login>user-" + (id % 50) + "</login><id>" + (id % 50) + "</id></author>"
+				+ "<updated>2014-06-02 11:30:00.0 UTC</updated>"
+				+ "<head>" + sha + "</head>"
+				+ "<baseSha>9049f1265b7d61be4a8904a9a27120d2064dab3b</baseSha>"
+				+ "<mergeable>true</mergeable>"
+				+ "<reponame>organization/repository-" + job + "</reponame>"
+				+ "<target>master</target>"
+				+ "<authorEmail>user-" + (id % 50) + "@example.com</authorEmail>"
+				+ "<shouldRun>false</shouldRun>"
+				+ "<accepted>true</accepted>"
+				+ "<triggered>false</triggered>"
+				+ "<forceRebuild>false</forceRebuild>"
+				+ "<summaryCommentId>0</summaryCommentId>"
+				+ "</org.jenkinsci.plugins.ghprb.GhprbPullRequest>";
+	}
+
+	@Benchmark
+	public int save(){
+		StringWriter w = new StringWriter(xml.length());
+		xstream.toXML(pulls, w);
+		return w.getBuffer().length();
+	}
+
+	@Benchmark
+	public Object load(){
+		return xstream.fromXML(xml);
+	}
+}
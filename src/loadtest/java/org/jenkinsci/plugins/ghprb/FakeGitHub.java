@@ -0,0 +1,484 @@
+package org.jenkinsci.plugins.ghprb;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONNull;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * In-process GitHub API serving the REST endpoints used by the plugin from generated repositories and
+ * pull requests. Like GitHub it pages listings, reports the rate limit in headers, leaves the mergeable
+ * state out of listings and answers {@code "mergeable": null} to the first fetches of a changed pull
+ * request. Latency and server errors can be injected.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class FakeGitHub {
+	private static final String REPO = "/repos/([^/]+/[^/]+)";
+	private static final Pattern RATE_LIMIT = Pattern.compile("/rate_limit");
+	private static final Pattern USER = Pattern.compile("/users/([^/]+)");
+	private static final Pattern REPOSITORY = Pattern.compile(REPO);
+	private static final Pattern PULLS = Pattern.compile(REPO + "/pulls");
+	private static final Pattern PULL = Pattern.compile(REPO + "/(?:pulls|issues)/(\\d+)");
+	private static final Pattern FILES = Pattern.compile(REPO + "/pulls/(\\d+)/files");
+	private static final Pattern COMMENTS = Pattern.compile(REPO + "/issues/(\\d+)/comments");
+	private static final Pattern COMMENT = Pattern.compile(REPO + "/issues/comments/(\\d+)");
+	private static final Pattern STATUSES = Pattern.compile(REPO + "/statuses/(\\w+)");
+	private static final Pattern HOOKS = Pattern.compile(REPO + "/hooks");
+	private static final int RATE_LIMIT_TOTAL = 5000;
+
+	private final HttpServer server;
+	private final int latency; // ms
+	private final double errorRate;
+	private final int mergeableNullFetches;
+	private final Random random = new Random(42);
+
+	// owner/name : repository
+	private final Map<String,Repo> repos = new ConcurrentHashMap<String,Repo>();
+	// "METHOD route" : number of requests
+	private final Map<String,AtomicLong> requests = new ConcurrentHashMap<String,AtomicLong>();
+	private final AtomicLong total = new AtomicLong();
+	// Authorization header : remaining rate limit of the credential
+	private final Map<String,AtomicInteger> rateRemaining = new ConcurrentHashMap<String,AtomicInteger>();
+	private final AtomicLong ids = new AtomicLong(1000000);
+	private final AtomicLong shas = new AtomicLong();
+
+	/**
+	 * @param latency delay of every response in ms
+	 * @param errorRate share of requests failing with 500
+	 * @param mergeableNullFetches how many fetches of a changed pull request answer null mergeable state
+	 */
+	public FakeGitHub(int latency, double errorRate, int mergeableNullFetches) throws IOException{
+		this.latency = latency;
+		this.errorRate = errorRate;
+		this.mergeableNullFetches = mergeableNullFetches;
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try{
+					FakeGitHub.this.handle(exchange);
+				}finally{
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());
+	}
+
+	public void start(){
+		server.start();
+	}
+
+	public void stop(){
+		server.stop(0);
+	}
+
+	public String getUrl(){
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Creates repository {@code name} with pull requests #1 - #{@code pulls}.
+	 */
+	public void createRepo(String name, int pulls){
+		Repo repo = new Repo(name, nextSha());
+		for(int i = 1; i <= pulls; i++){
+			repo.pulls.put(i, new Pull(i, "user-" + (i % 50), nextSha()));
+		}
+		repos.put(name, repo);
+	}
+
+	public List<String> getRepoNames(){
+		return new ArrayList<String>(repos.keySet());
+	}
+
+	public int getPullCount(String repo){
+		return repos.get(repo).pulls.size();
+	}
+
+	/**
+	 * Pushes a new commit to the pull request.
+	 * @return the "synchronize" webhook payload
+	 */
+	public String push(String repo, int number){
+		Repo r = repos.get(repo);
+		Pull pull = r.pulls.get(number);
+		synchronized(pull){
+			pull.head = nextSha();
+			pull.updated = System.currentTimeMillis();
+			pull.nullFetches = mergeableNullFetches;
+		}
+		JSONObject payload = new JSONObject();
+		payload.put("action", "synchronize");
+		payload.put("number", number);
+		payload.put("pull_request", pullJson(r, pull, false));
+		payload.put("repository", repoJson(r));
+		payload.put("sender", userJson(pull.author));
+		return payload.toString();
+	}
+
+	/**
+	 * Adds a comment to the pull request.
+	 * @return the "created" issue_comment webhook payload
+	 */
+	public String comment(String repo, int number, String login, String body){
+		Repo r = repos.get(repo);
+		Pull pull = r.pulls.get(number);
+		JSONObject comment = commentJson(r, pull, login, body);
+		synchronized(pull){
+			pull.comments.add(comment);
+			pull.updated = System.currentTimeMillis();
+		}
+		JSONObject payload = new JSONObject();
+		payload.put("action", "created");
+		payload.put("issue", issueJson(r, pull));
+		payload.put("comment", comment);
+		payload.put("repository", repoJson(r));
+		payload.put("sender", userJson(login));
+		return payload.toString();
+	}
+
+	public long getRequestCount(){
+		return total.get();
+	}
+
+	/**
+	 * Returns number of requests per endpoint, e.g. {@code GET /repos/:repo/pulls/:number}.
+	 */
+	public Map<String,Long> getRequestCounts(){
+		Map<String,Long> ret = new TreeMap<String,Long>();
+		for(Map.Entry<String,AtomicLong> e : requests.entrySet()){
+			ret.put(e.getKey(), e.getValue().get());
+		}
+		return ret;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException{
+		String method = exchange.getRequestMethod();
+		String override = exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override");
+		if(override != null) method = override;
+		String path = exchange.getRequestURI().getPath();
+		String query = exchange.getRequestURI().getQuery();
+		String body = IOUtils.toString(exchange.getRequestBody(), "UTF-8");
+
+		total.incrementAndGet();
+		if(latency > 0) try {
+			Thread.sleep(latency);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		boolean fail;
+		synchronized(random){
+			fail = random.nextDouble() < errorRate;
+		}
+		if(fail){
+			count(method, "(injected error)");
+			respond(exchange, 500, new JSONObject().element("message", "Server Error"));
+			return;
+		}
+
+		Matcher m;
+		if(RATE_LIMIT.matcher(path).matches()){
+			count(method, "/rate_limit");
+			JSONObject rate = new JSONObject();
+			rate.put("limit", RATE_LIMIT_TOTAL);
+			rate.put("remaining", rateRemaining(exchange).get());
+			rate.put("reset", System.currentTimeMillis() / 1000 + 3600);
+			respond(exchange, 200, new JSONObject().element("rate", rate).element("resources", new JSONObject().element("core", rate)));
+			return;
+		}
+		rateRemaining(exchange).decrementAndGet();
+
+		if((m = USER.matcher(path)).matches()){
+			count(method, "/users/:login");
+			JSONObject user = userJson(m.group(1));
+			user.put("email", m.group(1) + "@example.com");
+			respond(exchange, 200, user);
+		}else if((m = REPOSITORY.matcher(path)).matches()){
+			count(method, "/repos/:repo");
+			Repo repo = repos.get(m.group(1));
+			respond(exchange, repo == null ? 404 : 200, repo == null ? notFound() : repoJson(repo));
+		}else if((m = PULLS.matcher(path)).matches()){
+			count(method, "/repos/:repo/pulls");
+			listPulls(exchange, repos.get(m.group(1)), query);
+		}else if((m = FILES.matcher(path)).matches()){
+			count(method, "/repos/:repo/pulls/:number/files");
+			JSONArray files = new JSONArray();
+			files.add(new JSONObject().element("filename", "src/main/java/Example.java").element("status", "modified"));
+			respond(exchange, 200, files);
+		}else if((m = COMMENTS.matcher(path)).matches()){
+			count(method, "/repos/:repo/issues/:number/comments");
+			Repo repo = repos.get(m.group(1));
+			Pull pull = repo == null ? null : repo.pulls.get(Integer.valueOf(m.group(2)));
+			if(pull == null){
+				respond(exchange, 404, notFound());
+			}else if("POST".equals(method)){
+				JSONObject comment = commentJson(repo, pull, "jenkins", JSONObject.fromObject(body).getString("body"));
+				pull.comments.add(comment);
+				respond(exchange, 201, comment);
+			}else{
+				respond(exchange, 200, JSONArray.fromObject(pull.comments));
+			}
+		}else if((m = COMMENT.matcher(path)).matches()){
+			count(method, "/repos/:repo/issues/comments/:id");
+			respond(exchange, 200, new JSONObject().element("id", Long.valueOf(m.group(2))).element("body", JSONObject.fromObject(body).optString("body")));
+		}else if((m = PULL.matcher(path)).matches()){
+			count(method, "/repos/:repo/pulls/:number");
+			Repo repo = repos.get(m.group(1));
+			Pull pull = repo == null ? null : repo.pulls.get(Integer.valueOf(m.group(2)));
+			if(pull == null){
+				respond(exchange, 404, notFound());
+			}else{
+				respond(exchange, 200, pullJson(repo, pull, true));
+			}
+		}else if((m = STATUSES.matcher(path)).matches()){
+			count(method, "/repos/:repo/statuses/:sha");
+			JSONObject status = JSONObject.fromObject(body);
+			status.put("id", ids.incrementAndGet());
+			respond(exchange, 201, status);
+		}else if((m = HOOKS.matcher(path)).matches()){
+			count(method, "/repos/:repo/hooks");
+			if("POST".equals(method)){
+				respond(exchange, 201, JSONObject.fromObject(body).element("id", ids.incrementAndGet()));
+			}else{
+				respond(exchange, 200, new JSONArray());
+			}
+		}else{
+			count(method, "(unknown)");
+			respond(exchange, 404, notFound());
+		}
+	}
+
+	private void listPulls(HttpExchange exchange, Repo repo, String query) throws IOException{
+		if(repo == null){
+			respond(exchange, 404, notFound());
+			return;
+		}
+		int page = intParam(query, "page", 1);
+		int perPage = Math.min(100, intParam(query, "per_page", 30));
+		List<Pull> pulls = new ArrayList<Pull>(repo.pulls.values());
+		Collections.reverse(pulls); // newest first
+		String sort = "";
+		if(query != null && query.contains("sort=updated")){
+			// only descending, as the plugin asks for it
+			sort = "&sort=updated&direction=desc";
+			Collections.sort(pulls, new Comparator<Pull>() {
+				public int compare(Pull o1, Pull o2) {
+					return o2.updated < o1.updated ? -1 : (o2.updated == o1.updated ? 0 : 1);
+				}
+			});
+		}
+		int from = Math.min(pulls.size(), (page - 1) * perPage);
+		int to = Math.min(pulls.size(), from + perPage);
+		JSONArray ret = new JSONArray();
+		for(Pull pull : pulls.subList(from, to)){
+			ret.add(pullJson(repo, pull, false));
+		}
+		if(to < pulls.size()){
+			String next = getUrl() + "/repos/" + repo.name + "/pulls?state=open&per_page=" + perPage + sort + "&page=" + (page + 1);
+			exchange.getResponseHeaders().add("Link", "<" + next + ">; rel=\"next\"");
+		}
+		respond(exchange, 200, ret);
+	}
+
+	private static int intParam(String query, String name, int def){
+		if(query == null) return def;
+		for(String param : query.split("&")){
+			if(param.startsWith(name + "=")){
+				return Integer.parseInt(param.substring(name.length() + 1));
+			}
+		}
+		return def;
+	}
+
+	private void count(String method, String route){
+		String key = method + " " + route;
+		AtomicLong count = requests.get(key);
+		if(count == null){
+			synchronized(requests){
+				count = requests.get(key);
+				if(count == null){
+					count = new AtomicLong();
+					requests.put(key, count);
+				}
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	private AtomicInteger rateRemaining(HttpExchange exchange){
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		String key = authorization == null ? "" : authorization;
+		AtomicInteger ret = rateRemaining.get(key);
+		if(ret == null){
+			synchronized(rateRemaining){
+				ret = rateRemaining.get(key);
+				if(ret == null){
+					ret = new AtomicInteger(RATE_LIMIT_TOTAL);
+					rateRemaining.put(key, ret);
+				}
+			}
+		}
+		return ret;
+	}
+
+	private void respond(HttpExchange exchange, int code, Object json) throws IOException{
+		byte[] body = json.toString().getBytes("UTF-8");
+		exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+		exchange.getResponseHeaders().add("X-RateLimit-Limit", String.valueOf(RATE_LIMIT_TOTAL));
+		exchange.getResponseHeaders().add("X-RateLimit-Remaining", String.valueOf(Math.max(0, rateRemaining(exchange).get())));
+		exchange.sendResponseHeaders(code, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private static JSONObject notFound(){
+		return new JSONObject().element("message", "Not Found");
+	}
+
+	private String nextSha(){
+		return String.format("%040x", shas.incrementAndGet());
+	}
+
+	private JSONObject userJson(String login){
+		JSONObject user = new JSONObject();
+		user.put("login", login);
+		user.put("id", Math.abs(login.hashCode()));
+		user.put("url", getUrl() + "/users/" + login);
+		user.put("html_url", "https://github.com/" + login);
+		user.put("type", "User");
+		return user;
+	}
+
+	private JSONObject repoJson(Repo repo){
+		String owner = repo.name.substring(0, repo.name.indexOf('/'));
+		JSONObject json = new JSONObject();
+		json.put("id", Math.abs(repo.name.hashCode()));
+		json.put("name", repo.name.substring(owner.length() + 1));
+		json.put("full_name", repo.name);
+		json.put("owner", userJson(owner));
+		json.put("private", false);
+		json.put("html_url", getUrl() + "/" + repo.name);
+		json.put("url", getUrl() + "/repos/" + repo.name);
+		json.put("default_branch", "master");
+		return json;
+	}
+
+	private JSONObject pullJson(Repo repo, Pull pull, boolean full){
+		JSONObject json = issueJson(repo, pull);
+		json.put("url", getUrl() + "/repos/" + repo.name + "/pulls/" + pull.number);
+		json.put("issue_url", getUrl() + "/repos/" + repo.name + "/issues/" + pull.number);
+		json.put("state", "open");
+
+		JSONObject head = new JSONObject();
+		head.put("label", pull.author + ":branch-" + pull.number);
+		head.put("ref", "branch-" + pull.number);
+		head.put("sha", pull.head);
+		head.put("user", userJson(pull.author));
+		head.put("repo", repoJson(repo));
+		json.put("head", head);
+
+		JSONObject base = new JSONObject();
+		base.put("label", "master");
+		base.put("ref", "master");
+		base.put("sha", repo.master);
+		base.put("repo", repoJson(repo));
+		json.put("base", base);
+
+		json.put("merged", false);
+		if(full){
+			synchronized(pull){
+				if(pull.nullFetches > 0){
+					pull.nullFetches--;
+					json.put("mergeable", JSONNull.getInstance());
+				}else{
+					json.put("mergeable", true);
+				}
+			}
+		}
+		return json;
+	}
+
+	private JSONObject issueJson(Repo repo, Pull pull){
+		JSONObject json = new JSONObject();
+		json.put("number", pull.number);
+		json.put("id", pull.number + Math.abs(repo.name.hashCode()));
+		json.put("title", "Pull request number " + pull.number);
+		json.put("body", "Changes the repository check.");
+		json.put("user", userJson(pull.author));
+		json.put("html_url", getUrl() + "/" + repo.name + "/pull/" + pull.number);
+		json.put("created_at", date(pull.created));
+		json.put("updated_at", date(pull.updated));
+		json.put("comments", pull.comments.size());
+		return json;
+	}
+
+	private JSONObject commentJson(Repo repo, Pull pull, String login, String body){
+		long id = ids.incrementAndGet();
+		JSONObject json = new JSONObject();
+		json.put("id", id);
+		json.put("url", getUrl() + "/repos/" + repo.name + "/issues/comments/" + id);
+		json.put("user", userJson(login));
+		json.put("body", body);
+		json.put("created_at", date(System.currentTimeMillis()));
+		json.put("updated_at", date(System.currentTimeMillis()));
+		return json;
+	}
+
+	private static String date(long time){
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(new Date(time));
+	}
+
+	private static class Repo {
+		private final String name;
+		private final String master;
+		private final Map<Integer,Pull> pulls = Collections.synchronizedMap(new TreeMap<Integer,Pull>());
+
+		private Repo(String name, String master){
+			this.name = name;
+			this.master = master;
+		}
+	}
+
+	private class Pull {
+		private final int number;
+		private final String author;
+		private final long created = System.currentTimeMillis();
+		private final List<JSONObject> comments = new CopyOnWriteArrayList<JSONObject>();
+		private volatile String head;
+		private volatile long updated = created;
+		private int nullFetches = mergeableNullFetches;
+
+		private Pull(int number, String author, String head){
+			this.number = number;
+			this.author = author;
+			this.head = head;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package org.jenkinsci.plugins.ghprb;
+
+import com.coravy.hudson.plugins.github.GithubProjectProperty;
+import hudson.model.FreeStyleProject;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Future;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Load test of polling and webhooks against {@link FakeGitHub}. Creates {@code repos} repositories with
+ * {@code pulls} pull requests each, built by {@code jobs} jobs per repository, then runs {@code cycles}
+ * poll cycles of all jobs and delivers {@code hooks} webhooks. Reports GitHub API calls and wall time of
+ * each cycle, latency of webhooks, use of the {@code tokens} access tokens and heap usage.
+ *
+ * Run by {@code mvn -Ploadtest test-compile exec:exec}, the sizes are set by {@code -Dloadtest.<name>}
+ * properties, see the profile in pom.xml. Builds are only queued unless {@code loadtest.executors} is set.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbLoadTest {
+	private static final String TRIGGER_PHRASE = "retest this please";
+	private static final long HANDLING_TIMEOUT = 600000; // ms
+
+	private final int repos = Integer.getInteger("loadtest.repos", 50);
+	private final int pulls = Integer.getInteger("loadtest.pulls", 200);
+	private final int jobs = Integer.getInteger("loadtest.jobs", 10);
+	private final int cycles = Integer.getInteger("loadtest.cycles", 5);
+	private final int hooks = Integer.getInteger("loadtest.hooks", 1000);
+	private final int executors = Integer.getInteger("loadtest.executors", 0);
+	// access tokens, the first one is the primary
+	private final int tokens = Integer.getInteger("loadtest.tokens", 1);
+	private final int fullPollInterval = Integer.getInteger("loadtest.fullPollInterval", 1);
+	private final int latency = Integer.getInteger("loadtest.latency", 50);
+	private final double errorRate = Double.parseDouble(System.getProperty("loadtest.errorRate", "0"));
+	private final int mergeableNullFetches = Integer.getInteger("loadtest.mergeableNullFetches", 1);
+	// share of pull requests getting a new commit before each cycle
+	private final double changeRate = Double.parseDouble(System.getProperty("loadtest.changeRate", "0.05"));
+
+	private final Random random = new Random(42);
+	private final JenkinsRule jenkins = new JenkinsRule();
+	private final List<GhprbTrigger> triggers = new ArrayList<GhprbTrigger>();
+	private FakeGitHub gitHub;
+
+	public static void main(String[] args) throws Throwable {
+		final GhprbLoadTest test = new GhprbLoadTest();
+		test.jenkins.apply(new Statement() {
+			@Override
+			public void evaluate() throws Throwable {
+				test.run();
+			}
+		}, Description.createSuiteDescription(GhprbLoadTest.class)).evaluate();
+		System.exit(0);
+	}
+
+	private void run() throws Exception {
+		gitHub = new FakeGitHub(latency, errorRate, mergeableNullFetches);
+		gitHub.start();
+		try{
+			System.out.printf("%d repos x %d pull requests x %d jobs, latency %dms, error rate %.3f%n", repos, pulls, jobs, latency, errorRate);
+			for(int i = 0; i < repos; i++){
+				gitHub.createRepo("organization/repository-" + i, pulls);
+			}
+			configure();
+			long start = System.nanoTime();
+			long requests = gitHub.getRequestCount();
+			createJobs();
+			System.out.printf("startup: %d jobs in %dms, %d API calls%n", triggers.size(), millisSince(start), gitHub.getRequestCount() - requests);
+
+			for(int cycle = 1; cycle <= cycles; cycle++){
+				poll(cycle);
+			}
+			webhooks();
+			printRequests();
+			printTokens();
+			printHeap();
+		}finally{
+			gitHub.stop();
+		}
+	}
+
+	private void configure() throws Exception {
+		jenkins.jenkins.setNumExecutors(executors);
+		JSONObject form = new JSONObject();
+		form.put("serverAPIUrl", gitHub.getUrl());
+		form.put("username", "");
+		form.put("password", "");
+		form.put("accessToken", "token");
+		JSONArray additional = new JSONArray();
+		for(int i = 1; i < tokens; i++){
+			JSONObject token = new JSONObject();
+			token.put("token", "token-" + i);
+			additional.add(token);
+		}
+		form.put("additionalTokens", additional);
+		form.put("publishedURL", "");
+		form.put("okToTestPhrase", ".*ok\\W+to\\W+test.*");
+		form.put("forceRebuildPhrase", ".*force\\W+rebuild.*");
+		form.put("buildResultCacheMaxAge", 0);
+		form.put("maxMergeRebuildsPerCycle", 0);
+		form.put("maxQueuedBuilds", 0);
+		form.put("fullPollInterval", fullPollInterval);
+		form.put("cron", "");
+		form.put("useComments", false);
+		form.put("editSummaryComment", false);
+		form.put("logExcerptLines", 0);
+		form.put("unstableAs", "FAILURE");
+		form.put("autoCloseFailedPullRequests", false);
+		form.put("msgSuccess", "Test PASSED.");
+		form.put("msgFailure", "Test FAILED.");
+		form.put("gitHubThreads", 8);
+		form.put("gitHubMaxRequestsPerHost", 4);
+		GhprbTrigger.getDscp().configure(null, form);
+	}
+
+	private void createJobs() throws Exception {
+		for(String repo : gitHub.getRepoNames()){
+			for(int j = 0; j < jobs; j++){
+				FreeStyleProject project = jenkins.createFreeStyleProject(repo.replace('/', '-') + "-job-" + j);
+				project.addProperty(new GithubProjectProperty(gitHub.getUrl() + "/" + repo));
+				// empty cron, the cycles are driven by the test
+				GhprbTrigger trigger = new GhprbTrigger("", TRIGGER_PHRASE, false, false, true, false, "", "", 1);
+				project.addTrigger(trigger);
+				trigger.start(project, true);
+				GhprbRepositoryCache.get().putProject(project);
+				triggers.add(trigger);
+			}
+		}
+	}
+
+	private void poll(int cycle) throws Exception {
+		int changed = 0;
+		for(String repo : gitHub.getRepoNames()){
+			for(int id = 1; id <= gitHub.getPullCount(repo); id++){
+				if(random.nextDouble() < changeRate){
+					gitHub.push(repo, id);
+					changed++;
+				}
+			}
+		}
+
+		long requests = gitHub.getRequestCount();
+		long start = System.nanoTime();
+		List<Future<?>> checks = new ArrayList<Future<?>>();
+		for(GhprbTrigger trigger : triggers){
+			final Ghprb ghprb = trigger.getGhprb();
+			checks.add(GhprbGitHubExecutor.get().submit(new Runnable() {
+				public void run() {
+					ghprb.run();
+				}
+			}));
+		}
+		for(Future<?> check : checks){
+			check.get();
+		}
+		long wall = millisSince(start);
+		long checking = gitHub.getRequestCount() - requests;
+		waitForCommitStatuses();
+		System.out.printf("cycle %d: %d pull requests changed, %dms, %d API calls, %d more to publish commit statuses%n",
+				cycle, changed, wall, checking, gitHub.getRequestCount() - requests - checking);
+	}
+
+	private void webhooks() throws Exception {
+		GhprbHistogram delivery = new GhprbHistogram();
+		List<String> names = gitHub.getRepoNames();
+		long handled = GhprbMetrics.get().getWebhooks();
+		long requests = gitHub.getRequestCount();
+		for(int i = 0; i < hooks; i++){
+			String repo = names.get(random.nextInt(names.size()));
+			int id = 1 + random.nextInt(gitHub.getPullCount(repo));
+			long start = System.nanoTime();
+			if(i % 2 == 0){
+				deliver("pull_request", gitHub.push(repo, id));
+			}else{
+				deliver("issue_comment", gitHub.comment(repo, id, "user-" + random.nextInt(50), TRIGGER_PHRASE));
+			}
+			delivery.recordSince(start);
+		}
+		// each hook is handled once per job of its repository
+		long expected = handled + (long) hooks * jobs;
+		long deadline = System.currentTimeMillis() + HANDLING_TIMEOUT;
+		while(GhprbMetrics.get().getWebhooks() < expected && System.currentTimeMillis() < deadline){
+			Thread.sleep(100);
+		}
+		waitForCommitStatuses();
+		System.out.printf("webhooks: %d, %d of %d handled, %d API calls, delivery p50 %.1fms p99 %.1fms, handling p50 %.1fms p99 %.1fms%n",
+				hooks, GhprbMetrics.get().getWebhooks() - handled, expected - handled, gitHub.getRequestCount() - requests,
+				delivery.getPercentile(50), delivery.getPercentile(99),
+				GhprbMetrics.get().getWebhookLatencyP50(), GhprbMetrics.get().getWebhookLatencyP99());
+	}
+
+	private void deliver(String event, String payload) throws Exception {
+		HttpURLConnection uc = (HttpURLConnection) new URL(jenkins.getURL(), GhprbRootAction.URL + "/").openConnection();
+		uc.setRequestMethod("POST");
+		uc.setDoOutput(true);
+		uc.setRequestProperty("X-GitHub-Event", event);
+		uc.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+		OutputStream out = uc.getOutputStream();
+		try{
+			out.write(("payload=" + URLEncoder.encode(payload, "UTF-8")).getBytes("UTF-8"));
+		}finally{
+			out.close();
+		}
+		if(uc.getResponseCode() != 200){
+			System.out.printf("webhook %s failed with %d%n", event, uc.getResponseCode());
+		}
+		uc.disconnect();
+	}
+
+	private static void waitForCommitStatuses() throws InterruptedException {
+		while(GhprbCommitStatusPublisher.get().getPendingCount() > 0){
+			Thread.sleep(100);
+		}
+	}
+
+	private void printRequests(){
+		System.out.println("API calls by endpoint:");
+		for(Map.Entry<String,Long> e : gitHub.getRequestCounts().entrySet()){
+			System.out.printf("  %-50s %d%n", e.getKey(), e.getValue());
+		}
+	}
+
+	private static void printTokens(){
+		System.out.println("API calls by token:");
+		for(GhprbToken token : GhprbTrigger.getDscp().getGitHub().getTokens()){
+			System.out.printf("  %-10s %s%n", token.getName(), token.toJSON());
+		}
+	}
+
+	private static void printHeap(){
+		System.gc();
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		System.out.printf("heap: %dMB used, %dMB committed%n", heap.getUsed() >> 20, heap.getCommitted() >> 20);
+	}
+
+	private static long millisSince(long start){
+		return (System.nanoTime() - start) / 1000000;
+	}
+}
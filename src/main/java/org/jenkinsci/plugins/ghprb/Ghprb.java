@@ -28,10 +28,29 @@ public class Ghprb {
 
 	private boolean checked = false;
 
-	private final Pattern oktotestPhrasePattern;
+	private final String okToTestPhrase;
+	private final String forceRebuildPhrase;
+	// shared by the jobs of the repository, so each comment is matched once
+	private GhprbPhraseMatcher matcher;
+	private boolean registered = false;
 
 	private Ghprb(){
-		oktotestPhrasePattern = Pattern.compile(GhprbTrigger.getDscp().getOkToTestPhrase());
+		okToTestPhrase = GhprbTrigger.getDscp().getOkToTestPhrase();
+		forceRebuildPhrase = GhprbTrigger.getDscp().getForceRebuildPhrase();
+	}
+
+	// phrases given explicitly, so matching can be benchmarked without Jenkins
+	Ghprb(String okToTestPhrase, String forceRebuildPhrase, String triggerPhrase){
+		this.okToTestPhrase = okToTestPhrase;
+		this.forceRebuildPhrase = forceRebuildPhrase;
+		this.triggerPhrase = triggerPhrase;
+		register(new GhprbPhraseMatcher());
+	}
+
+	private synchronized void register(GhprbPhraseMatcher matcher){
+		matcher.register(okToTestPhrase, forceRebuildPhrase, triggerPhrase);
+		this.matcher = matcher;
+		registered = true;
 	}
 	
 	public static Builder getBuilder(){
@@ -42,6 +61,10 @@ public class Ghprb {
 		return builds;
 	}
 
+	AbstractProject<?, ?> getProject() {
+		return project;
+	}
+
 	public GhprbRepository getRepository() {
 		return repository;
 	}
@@ -51,16 +74,35 @@ public class Ghprb {
 	}
 
 	void run() {
-		if(trigger.getUseGitHubHooks() && checked){
-			return;
+		// the trigger can be stopped while we're running in background
+		GhprbRepository repository = this.repository;
+		GhprbBuilds builds = this.builds;
+		if(repository == null || builds == null) return;
+
+		GhprbTraceAction.begin(new GhprbTraceAction());
+		try{
+			repository.rebuildStaleMerges();
+			builds.releaseDeferred();
+			builds.flushBatches();
+			if(trigger.getUseGitHubHooks() && checked){
+				return;
+			}
+			checked = true;
+			repository.check();
+		}finally{
+			GhprbTraceAction.end();
 		}
-		checked = true;
-		repository.check();
 	}
 
 	void stop() {
 		repository = null;
 		builds = null;
+		synchronized(this){
+			if(registered){
+				matcher.unregister(okToTestPhrase, forceRebuildPhrase, triggerPhrase);
+				registered = false;
+			}
+		}
 	}
 
 
@@ -71,11 +113,15 @@ public class Ghprb {
 	}
 
 	public boolean isOktotestPhrase(String comment){
-		return oktotestPhrasePattern.matcher(comment).matches();
+		return matcher.match(comment).matches(okToTestPhrase);
+	}
+
+	public boolean isForceRebuildPhrase(String comment){
+		return matcher.match(comment).matches(forceRebuildPhrase);
 	}
 
 	public boolean isTriggerPhrase(String comment){
-		return !triggerPhrase.equals("") && comment.contains(triggerPhrase);
+		return matcher.match(comment).contains(triggerPhrase);
 	}
 
 	public boolean ifOnlyTriggerPhrase() {
@@ -137,11 +183,10 @@ public class Ghprb {
 			if(gml == null || pulls == null || gml.trigger == null || gml.project == null){
 				throw new IllegalStateException();
 			}
+			gml.register(GhprbPhraseMatcher.get(gml.githubServer + "/" + user + "/" + repo));
 			gml.repository = new GhprbRepository(user, repo, gml,pulls);
 			gml.repository.init();
-			if(gml.trigger.getUseGitHubHooks()){
-				gml.repository.createHook();
-			}
+			gml.repository.start(gml.trigger.getUseGitHubHooks());
 			gml.builds = new GhprbBuilds(gml.trigger,gml.repository);
 			return gml;
 		}
@@ -0,0 +1,213 @@
+package org.jenkinsci.plugins.ghprb;
+
+import hudson.ProxyConfiguration;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import net.sf.json.JSON;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Minimal JSON client for the GitHub API endpoints the bundled github-api library doesn't cover.
+ * Uses the same server and credentials as {@link GhprbGitHub}: reads go with the token having the most
+ * remaining quota, writes with the configured credentials.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbApiClient {
+	private static final Pattern nextLinkPattern = Pattern.compile("<([^>]*)>;\\s*rel=\"next\"");
+
+	private final String serverAPIUrl;
+	private final String host;
+	private final GhprbGitHub gitHub;
+	private final GhprbCircuitBreaker breaker;
+
+	GhprbApiClient(String serverAPIUrl, GhprbGitHub gitHub){
+		this.serverAPIUrl = serverAPIUrl.endsWith("/") ? serverAPIUrl.substring(0, serverAPIUrl.length() - 1) : serverAPIUrl;
+		this.host = GhprbGitHubExecutor.getHost(serverAPIUrl);
+		this.gitHub = gitHub;
+		this.breaker = GhprbCircuitBreaker.get(serverAPIUrl);
+	}
+
+	public JSON get(String path) throws IOException{
+		breaker.checkRequest();
+		long start = System.nanoTime();
+		try{
+			GhprbToken token = gitHub.getReadToken();
+			JSON ret;
+			Semaphore permits = GhprbGitHubExecutor.get().acquire(host);
+			try{
+				ret = parse(open("GET", url(path), token), token);
+			}finally{
+				permits.release();
+			}
+			breaker.recordSuccess();
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.API_GET, start, true);
+			return ret;
+		}catch(IOException ex){
+			breaker.recordFailure(ex);
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.API_GET, start, false);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Fetches all pages of a listing, following the {@code Link: <...>; rel="next"} headers.
+	 */
+	public JSONArray getPages(String path) throws IOException{
+		JSONArray ret = new JSONArray();
+		String next = path;
+		while(next != null){
+			Page page = getPage(next);
+			ret.addAll(page.getItems());
+			next = page.getNext();
+		}
+		return ret;
+	}
+
+	/**
+	 * Fetches one page of a listing, for callers which can stop before its end.
+	 */
+	public Page getPage(String path) throws IOException{
+		breaker.checkRequest();
+		long start = System.nanoTime();
+		try{
+			GhprbToken token = gitHub.getReadToken();
+			Page ret;
+			Semaphore permits = GhprbGitHubExecutor.get().acquire(host);
+			try{
+				HttpURLConnection uc = open("GET", url(path), token);
+				ret = new Page((JSONArray) parse(uc, token), getNextLink(uc));
+			}finally{
+				permits.release();
+			}
+			breaker.recordSuccess();
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.API_GET, start, true);
+			return ret;
+		}catch(IOException ex){
+			breaker.recordFailure(ex);
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.API_GET, start, false);
+			throw ex;
+		}
+	}
+
+	public static class Page {
+		private final JSONArray items;
+		private final String next;
+
+		private Page(JSONArray items, String next){
+			this.items = items;
+			this.next = next;
+		}
+
+		public JSONArray getItems(){
+			return items;
+		}
+
+		/**
+		 * Returns URL of the next page, null if this is the last one.
+		 */
+		public String getNext(){
+			return next;
+		}
+	}
+
+	public JSONObject post(String path, JSONObject body) throws IOException{
+		return (JSONObject) send("POST", path, body);
+	}
+
+	public JSONObject patch(String path, JSONObject body) throws IOException{
+		return (JSONObject) send("PATCH", path, body);
+	}
+
+	private JSON send(String method, String path, JSONObject body) throws IOException{
+		breaker.checkRequest();
+		GhprbMetrics.Call call = "PATCH".equals(method) ? GhprbMetrics.Call.API_PATCH : GhprbMetrics.Call.API_POST;
+		long start = System.nanoTime();
+		try{
+			GhprbToken token = gitHub.getWriteToken();
+			JSON ret;
+			Semaphore permits = GhprbGitHubExecutor.get().acquire(host);
+			try{
+				HttpURLConnection uc = open(method, url(path), token);
+				uc.setDoOutput(true);
+				uc.setRequestProperty("Content-type", "application/json; charset=utf-8");
+				OutputStream out = uc.getOutputStream();
+				try{
+					out.write(body.toString().getBytes("UTF-8"));
+				}finally{
+					out.close();
+				}
+				ret = parse(uc, token);
+			}finally{
+				permits.release();
+			}
+			breaker.recordSuccess();
+			GhprbMetrics.get().recordCall(call, start, true);
+			return ret;
+		}catch(IOException ex){
+			breaker.recordFailure(ex);
+			GhprbMetrics.get().recordCall(call, start, false);
+			throw ex;
+		}
+	}
+
+	private HttpURLConnection open(String method, String url, GhprbToken token) throws IOException{
+		HttpURLConnection uc = (HttpURLConnection) ProxyConfiguration.open(new URL(url));
+		if("PATCH".equals(method)){
+			// HttpURLConnection doesn't know PATCH
+			uc.setRequestMethod("POST");
+			uc.setRequestProperty("X-HTTP-Method-Override", "PATCH");
+		}else{
+			uc.setRequestMethod(method);
+		}
+		String authorization = token.getAuthorization();
+		if(authorization != null){
+			uc.setRequestProperty("Authorization", authorization);
+		}
+		uc.setRequestProperty("Accept", "application/vnd.github.v3+json");
+		return uc;
+	}
+
+	private JSON parse(HttpURLConnection uc, GhprbToken token) throws IOException{
+		int code = uc.getResponseCode();
+		if(code >= 400 && code != 404 && code != 410){
+			recordRateLimit(uc, token);
+			boolean rateLimited = code == 403 && uc.getHeaderFieldInt("X-RateLimit-Remaining", -1) == 0;
+			throw new GhprbCircuitBreaker.ResponseException(uc.getURL().toString(), code, rateLimited);
+		}
+		InputStream in = uc.getInputStream();
+		recordRateLimit(uc, token);
+		try{
+			return JSONSerializer.toJSON(IOUtils.toString(in, "UTF-8"));
+		}finally{
+			in.close();
+		}
+	}
+
+	private static void recordRateLimit(HttpURLConnection uc, GhprbToken token){
+		int remaining = uc.getHeaderFieldInt("X-RateLimit-Remaining", -1);
+		if(remaining >= 0){
+			token.recordRateLimit(remaining, uc.getHeaderFieldInt("X-RateLimit-Limit", -1));
+		}
+	}
+
+	private String url(String path){
+		return path.startsWith("http") ? path : serverAPIUrl + path;
+	}
+
+	private static String getNextLink(HttpURLConnection uc){
+		String link = uc.getHeaderField("Link");
+		if(link == null) return null;
+		Matcher m = nextLinkPattern.matcher(link);
+		return m.find() ? m.group(1) : null;
+	}
+}
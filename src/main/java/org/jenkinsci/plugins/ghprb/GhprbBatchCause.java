@@ -0,0 +1,51 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cause of a build testing several pull requests targeting the same branch merged together.
+ * The first member is used as the lead for the attributes inherited from {@link GhprbCause}.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbBatchCause extends GhprbCause{
+	private final List<GhprbCause> members;
+
+	public GhprbBatchCause(List<GhprbCause> members){
+		super(members.get(0).getCommit(), members.get(0).getPullID(), true, members.get(0).getTargetBranch(),
+		      members.get(0).getBaseCommit(), members.get(0).getAuthorEmail(), members.get(0).getTitle());
+		this.members = new ArrayList<GhprbCause>(members);
+	}
+
+	@Override
+	public String getShortDescription() {
+		return "GitHub pull requests #" + getPullIDs(", #") + " merged into " + getTargetBranch() + " as a batch.";
+	}
+
+	public List<GhprbCause> getMembers() {
+		return Collections.unmodifiableList(members);
+	}
+
+	/**
+	 * Returns numbers of the member pull requests joined by the separator.
+	 */
+	public String getPullIDs(String separator) {
+		StringBuilder sb = new StringBuilder();
+		for(GhprbCause member : members){
+			if(sb.length() > 0) sb.append(separator);
+			sb.append(member.getPullID());
+		}
+		return sb.toString();
+	}
+
+	public String getCommits(String separator) {
+		StringBuilder sb = new StringBuilder();
+		for(GhprbCause member : members){
+			if(sb.length() > 0) sb.append(separator);
+			sb.append(member.getCommit());
+		}
+		return sb.toString();
+	}
+}
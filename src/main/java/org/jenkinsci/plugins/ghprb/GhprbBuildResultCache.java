@@ -0,0 +1,155 @@
+package org.jenkinsci.plugins.ghprb;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Result;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.kohsuke.github.GHCommitState;
+
+/**
+ * Singleton cache of finished pull request build results, addressed by what was actually built:
+ * the job, the head SHA, the target branch SHA and whether the merge was built.
+ *
+ * When a pull request is re-triggered without any of those having moved, the previous result can be
+ * republished instead of running the very same build again. The cache is filled when a build completes
+ * and, after a restart, once per job from its most recent builds.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbBuildResultCache {
+
+	private static final Logger logger = Logger.getLogger(GhprbBuildResultCache.class.getName());
+	private static GhprbBuildResultCache cache = new GhprbBuildResultCache();
+
+	public static GhprbBuildResultCache get(){
+		return cache;
+	}
+
+	// how many of the job's latest builds are looked at to warm the cache after a restart
+	static final int HISTORY_BUILDS = 50;
+
+	private final Map<Key,Entry> results = new ConcurrentHashMap<Key,Entry>();
+	private final Set<String> loaded = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+	public void put(String job, GhprbCause cause, GHCommitState state, String url, String message, int buildNumber, long timestamp){
+		if(cause.getBaseCommit() == null) return;
+		Key key = new Key(job, cause.getCommit(), cause.getBaseCommit(), cause.isMerged());
+		results.put(key, new Entry(state, url, message, buildNumber, timestamp));
+	}
+
+	/**
+	 * Returns the result of a build of the same content finished at most {@code maxAge} milliseconds ago, or null.
+	 */
+	public Entry lookup(AbstractProject<?,?> job, String head, String base, boolean merged, long maxAge){
+		if(head == null || base == null) return null;
+		long oldest = System.currentTimeMillis() - maxAge;
+		prune(oldest);
+
+		if(loaded.add(job.getFullName())){
+			fromHistory(job, oldest);
+		}
+		Entry entry = results.get(new Key(job.getFullName(), head, base, merged));
+		if(entry != null && entry.timestamp < oldest) return null;
+		return entry;
+	}
+
+	private void prune(long oldest){
+		for(Iterator<Entry> it = results.values().iterator(); it.hasNext();){
+			if(it.next().timestamp < oldest) it.remove();
+		}
+	}
+
+	// Loads the results of the job's latest builds, once after a restart, the builds finishing later are
+	// put by GhprbBuilds. Builds are listed newest first, so we can stop as soon as we get behind the max age.
+	private void fromHistory(AbstractProject<?,?> job, long oldest){
+		int scanned = 0;
+		for(AbstractBuild<?,?> build : job.getBuilds()){
+			if(++scanned > HISTORY_BUILDS || build.getTimeInMillis() < oldest) break;
+			if(build.isBuilding() || build.getResult() == null || build.getResult() == Result.ABORTED) continue;
+
+			GhprbCause c = build.getCause(GhprbCause.class);
+			// a batch tested several pull requests together, its result isn't the lead member's alone
+			if(c == null || c instanceof GhprbBatchCause || c.getCommit() == null || c.getBaseCommit() == null) continue;
+
+			Key key = new Key(job.getFullName(), c.getCommit(), c.getBaseCommit(), c.isMerged());
+			// a newer build of the same content was seen already
+			if(results.containsKey(key)) continue;
+			logger.log(Level.FINE, "Found build #{0} of {1} for commit {2} in build history", new Object[]{build.getNumber(), key.job, key.head});
+			results.put(key, new Entry(GhprbBuilds.getCommitState(build.getResult()),
+			                           Jenkins.getInstance().getRootUrl() + build.getUrl(),
+			                           c.isMerged() ? "Merged build finished." : "Build finished.",
+			                           build.getNumber(),
+			                           build.getTimeInMillis() + build.getDuration()));
+		}
+	}
+
+	public static class Entry {
+		private final GHCommitState state;
+		private final String url;
+		private final String message;
+		private final int buildNumber;
+		private final long timestamp;
+
+		private Entry(GHCommitState state, String url, String message, int buildNumber, long timestamp){
+			this.state = state;
+			this.url = url;
+			this.message = message;
+			this.buildNumber = buildNumber;
+			this.timestamp = timestamp;
+		}
+
+		public GHCommitState getState() {
+			return state;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public int getBuildNumber() {
+			return buildNumber;
+		}
+	}
+
+	private static class Key {
+		private final String job;
+		private final String head;
+		private final String base;
+		private final boolean merged;
+
+		private Key(String job, String head, String base, boolean merged){
+			this.job = job;
+			this.head = head;
+			this.base = base;
+			this.merged = merged;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key)) return false;
+			Key o = (Key) obj;
+			return merged == o.merged && job.equals(o.job) && head.equals(o.head) && base.equals(o.base);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = 7;
+			hash = 89 * hash + job.hashCode();
+			hash = 89 * hash + head.hashCode();
+			hash = 89 * hash + base.hashCode();
+			hash = 89 * hash + (merged ? 1 : 0);
+			return hash;
+		}
+	}
+}
@@ -1,16 +1,27 @@
 package org.jenkinsci.plugins.ghprb;
 
 import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Actionable;
 import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Queue;
 import hudson.model.Result;
 import hudson.model.queue.QueueTaskFuture;
 import hudson.plugins.git.util.BuildData;
+import jenkins.model.Jenkins;
 import org.kohsuke.github.GHCommitState;
 import org.kohsuke.github.GHIssueState;
 import org.kohsuke.github.GHPullRequest;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,6 +33,10 @@ public class GhprbBuilds {
 	private static final Logger logger = Logger.getLogger(GhprbBuilds.class.getName());
 	private GhprbTrigger trigger;
 	private GhprbRepository repo;
+	// target branch : pull requests waiting for a batch build
+	private final Map<String,List<GhprbCause>> batches = new HashMap<String,List<GhprbCause>>();
+	// pull request id : build deferred while the queue is full, oldest first
+	private final LinkedHashMap<Integer,GhprbCause> deferred = new LinkedHashMap<Integer,GhprbCause>();
 
 	public GhprbBuilds(GhprbTrigger trigger, GhprbRepository repo){
 		this.trigger = trigger;
@@ -40,15 +55,235 @@ public class GhprbBuilds {
 			sb.append(" Build triggered.");
 		}
 
-		GhprbCause cause = new GhprbCause(pr.getHead(), pr.getId(), pr.isMergeable(), pr.getTarget(), pr.getAuthorEmail(), pr.getTitle());
+		GhprbCause cause = new GhprbCause(pr.getHead(), pr.getId(), pr.isMergeable(), pr.getTarget(), pr.getBaseSha(), pr.getAuthorEmail(), pr.getTitle());
 
+		int position = defer(cause);
+		pr.setDeferred(position > 0);
+		if(position > 0){
+			GhprbMetrics.get().recordBuild(GhprbMetrics.Build.DEFERRED);
+			return "Build queued, position " + position + ".";
+		}
+
+		if(pr.isMergeable() && trigger.getBatchSize() > 1){
+			return addToBatch(cause);
+		}
+
+		startJob(cause);
+		return sb.toString();
+	}
+
+	/**
+	 * Defers the build if the job already has {@code maxQueuedBuilds} builds in the queue or other
+	 * builds are deferred. A newer commit of a pull request takes the place of its deferred one.
+	 * @return position of the deferred build, 0 if it should be scheduled now
+	 */
+	private int defer(GhprbCause cause) {
+		int max = GhprbTrigger.getDscp().getMaxQueuedBuilds();
+		if(max <= 0) return 0;
+		synchronized(deferred){
+			if(deferred.isEmpty() && getQueuedBuilds() < max) return 0;
+			deferred.put(cause.getPullID(), cause);
+			int position = 1;
+			for(Integer id : deferred.keySet()){
+				if(id == cause.getPullID()) break;
+				position++;
+			}
+			logger.log(Level.INFO, "Queue of {0} is full, deferring build of pr #{1} at position {2}",
+					new Object[]{trigger.getProject().getFullName(), cause.getPullID(), position});
+			return position;
+		}
+	}
+
+	/**
+	 * Schedules deferred builds, oldest first, while the job has less than {@code maxQueuedBuilds}
+	 * builds in the queue. Called each cycle and when a build of the job starts.
+	 */
+	public void releaseDeferred() {
+		while(true){
+			GhprbCause cause;
+			synchronized(deferred){
+				if(deferred.isEmpty()) return;
+				int max = GhprbTrigger.getDscp().getMaxQueuedBuilds();
+				if(max > 0 && getQueuedBuilds() >= max) return;
+				Iterator<GhprbCause> it = deferred.values().iterator();
+				cause = it.next();
+				it.remove();
+			}
+			Lock lock = GhprbPullRequestLocks.get(repo.getName(), cause.getPullID());
+			lock.lock();
+			try{
+				GhprbPullRequest pull = repo.getPull(cause.getPullID());
+				if(pull == null){
+					logger.log(Level.INFO, "Dropping deferred build of pr #{0}, it was closed", cause.getPullID());
+					continue;
+				}
+				pull.setDeferred(false);
+			}finally{
+				lock.unlock();
+			}
+			logger.log(Level.INFO, "Releasing deferred build of pr #{0}", cause.getPullID());
+			if(cause.isMerged() && trigger.getBatchSize() > 1){
+				addToBatch(cause);
+			}else{
+				startJob(cause);
+			}
+		}
+	}
+
+	private int getQueuedBuilds() {
+		AbstractProject<?,?> project = trigger.getProject();
+		int ret = 0;
+		for(Queue.Item item : Jenkins.getInstance().getQueue().getItems()){
+			if(item.task == project) ret++;
+		}
+		return ret;
+	}
+
+	private void startJob(GhprbCause cause) {
 		QueueTaskFuture<?> build = trigger.startJob(cause);
 		if(build == null){
 			logger.log(Level.SEVERE, "Failed to trigger build by the cause: {0}",cause.getShortDescription());
 		}else{
+			GhprbMetrics.get().recordBuild(GhprbMetrics.Build.TRIGGERED);
 			logger.log(Level.INFO, "Cause has been triggered for: {0}",cause.getShortDescription());
 		}
-		return sb.toString();
+	}
+
+	private String addToBatch(GhprbCause cause) {
+		List<GhprbCause> batch;
+		synchronized(batches){
+			batch = batches.get(cause.getTargetBranch());
+			if(batch == null){
+				batch = new ArrayList<GhprbCause>();
+				batches.put(cause.getTargetBranch(), batch);
+			}
+			// newer commit of the same pull request replaces the waiting one
+			for(Iterator<GhprbCause> it = batch.iterator(); it.hasNext();){
+				if(it.next().getPullID() == cause.getPullID()) it.remove();
+			}
+			batch.add(cause);
+			if(batch.size() < trigger.getBatchSize()){
+				GhprbMetrics.get().recordBuild(GhprbMetrics.Build.BATCHED);
+				return "Waiting for a batch build.";
+			}
+			batches.remove(cause.getTargetBranch());
+		}
+		startBatch(batch);
+		return "Batch build triggered.";
+	}
+
+	/**
+	 * Starts builds of all partially filled batches so no pull request waits longer than one cycle.
+	 */
+	public void flushBatches() {
+		List<List<GhprbCause>> waiting;
+		synchronized(batches){
+			if(batches.isEmpty()) return;
+			waiting = new ArrayList<List<GhprbCause>>(batches.values());
+			batches.clear();
+		}
+		for(List<GhprbCause> batch : waiting){
+			startBatch(batch);
+		}
+	}
+
+	private void startBatch(List<GhprbCause> batch) {
+		if(batch.size() == 1){
+			startJob(batch.get(0));
+		}else{
+			startJob(new GhprbBatchCause(batch));
+		}
+	}
+
+	/**
+	 * Republishes the result of a previous build of the same head and target branch SHAs, if there is
+	 * a recent enough one.
+	 * @return true if the result was reused and no build should be scheduled
+	 */
+	public boolean reuseResult(GhprbPullRequest pr) {
+		long maxAge = GhprbTrigger.getDscp().getBuildResultCacheMaxAge() * 60000L;
+		if(maxAge <= 0) return false;
+
+		GhprbBuildResultCache.Entry result = GhprbBuildResultCache.get().lookup(trigger.getProject(), pr.getHead(), pr.getBaseSha(), pr.isMergeable(), maxAge);
+		if(result == null) return false;
+
+		logger.log(Level.INFO, "Reusing result of build #{0} for pr #{1} on {2}, SHA {3} and its target didn''t change",
+				new Object[]{result.getBuildNumber(), pr.getId(), repo.getName(), pr.getHead()});
+		repo.createCommitStatus(pr.getHead(), result.getState(), result.getUrl(),
+				result.getMessage() + " (reused result of build #" + result.getBuildNumber() + ")", pr.getId());
+		GhprbMetrics.get().recordBuild(GhprbMetrics.Build.REUSED);
+		return true;
+	}
+
+	/**
+	 * Skips the build if the pull request doesn't change any file relevant for this job.
+	 * @return true if the build was skipped
+	 */
+	public boolean skipByPathFilter(GhprbPullRequest pr) {
+		GhprbPathFilter filter = trigger.getPathFilter();
+		if(filter == null) return false;
+
+		List<String> files;
+		try {
+			files = repo.getChangedFiles(pr.getId(), pr.getTarget(), pr.getHead());
+		} catch (IOException ex) {
+			logger.log(Level.WARNING, "Couldn't obtain changed files of pr #" + pr.getId() + ", building it anyway", ex);
+			return false;
+		}
+		if(files == null){
+			logger.log(Level.INFO, "Pr #{0} on {1} changes more files than GitHub lists, building it", new Object[]{pr.getId(), repo.getName()});
+			return false;
+		}
+		if(filter.isRelevant(files)) return false;
+
+		// no status, without a context it would replace the statuses of other jobs building the commit
+		logger.log(Level.INFO, "None of {0} files changed by pr #{1} on {2} is relevant for {3}, skipping the build",
+				new Object[]{files.size(), pr.getId(), repo.getName(), trigger.getProject().getFullName()});
+		GhprbMetrics.get().recordBuild(GhprbMetrics.Build.SKIPPED_BY_PATHS);
+		return true;
+	}
+
+	/**
+	 * Reads the files changed by the commit, so {@link #skipByPathFilter} finds them cached instead of
+	 * requesting them while the lock of the pull request is held.
+	 */
+	void readChangedFiles(int id, String target, String sha) {
+		if(trigger.getPathFilter() == null) return;
+		try {
+			repo.getChangedFiles(id, target, sha);
+		} catch (IOException ex) {
+			// skipByPathFilter asks again and reports it
+		}
+	}
+
+	/**
+	 * Find the previous BuildData for the given pull request number among the builds, newest first;
+	 * this may return null
+	 */
+	static BuildData findPreviousBuildForPullId(Iterable<? extends Actionable> builds, int pullId) {
+		// find the previous build for this particular pull requet, it may not be the last build
+		for (Actionable r : builds) {
+			CauseAction ca = r.getAction(CauseAction.class);
+			if (ca == null) continue;
+			GhprbCause cause = ca.findCause(GhprbCause.class);
+			// a batch build doesn't check the pull request out
+			if (cause != null && !(cause instanceof GhprbBatchCause) && cause.getPullID() == pullId) {
+				for (BuildData bd : r.getActions(BuildData.class)) {
+					return bd;
+				}
+			}
+		}
+		return null;
+	}
+
+	static GHCommitState getCommitState(Result result) {
+		if (result == Result.SUCCESS) {
+			return GHCommitState.SUCCESS;
+		} else if (result == Result.UNSTABLE){
+			return GHCommitState.valueOf(GhprbTrigger.getDscp().getUnstableAs());
+		} else {
+			return GHCommitState.FAILURE;
+		}
 	}
 
 	private boolean cancelBuild(int id) {
@@ -65,6 +300,18 @@ public class GhprbBuilds {
 		GhprbCause c = getCause(build);
 		if(c == null) return;
 
+		GhprbTraceAction trace = build.getAction(GhprbTraceAction.class);
+		if(trace != null){
+			trace.mark(GhprbTraceAction.Stage.STARTED);
+		}
+		// the build left the queue, there may be room for a deferred one
+		releaseDeferred();
+
+		if(c instanceof GhprbBatchCause){
+			onBatchStarted(build, (GhprbBatchCause) c);
+			return;
+		}
+
 		repo.createCommitStatus(build, GHCommitState.PENDING, (c.isMerged() ? "Merged build started." : "Build started."),c.getPullID());
 		try {
 			build.setDescription("<a title=\"" + c.getTitle() + "\" href=\"" + repo.getRepoUrl()+"/pull/"+c.getPullID()+"\">PR #"+c.getPullID()+"</a>: " + c.getAbbreviatedTitle());
@@ -73,10 +320,36 @@ public class GhprbBuilds {
 		}
 	}
 
+	private void onBatchStarted(AbstractBuild build, GhprbBatchCause c) {
+		String url = Jenkins.getInstance().getRootUrl() + build.getUrl();
+		for(GhprbCause member : c.getMembers()){
+			repo.createCommitStatus(member.getCommit(), GHCommitState.PENDING, url, "Batch build of " + c.getMembers().size() + " pull requests started.", member.getPullID());
+		}
+		try {
+			StringBuilder sb = new StringBuilder("Batch:");
+			for(GhprbCause member : c.getMembers()){
+				sb.append(" <a title=\"").append(member.getTitle()).append("\" href=\"").append(repo.getRepoUrl()).append("/pull/").append(member.getPullID()).append("\">PR #").append(member.getPullID()).append("</a>");
+			}
+			build.setDescription(sb.toString());
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, "Can't update build description", ex);
+		}
+	}
+
 	public void onCompleted(AbstractBuild build) {
 		GhprbCause c = getCause(build);
 		if(c == null) return;
 
+		GhprbTraceAction trace = build.getAction(GhprbTraceAction.class);
+		if(trace != null){
+			trace.mark(GhprbTraceAction.Stage.COMPLETED);
+		}
+
+		if(c instanceof GhprbBatchCause){
+			onBatchCompleted(build, (GhprbBatchCause) c);
+			return;
+		}
+
 		// remove the BuildData action that we may have added earlier to avoid
 		// having two of them, and because the one we added isn't correct
 		// @see GhprbTrigger
@@ -91,17 +364,98 @@ public class GhprbBuilds {
 			build.getActions().remove(fakeOne);
 		}
 		
-		GHCommitState state;
-		if (build.getResult() == Result.SUCCESS) {
-			state = GHCommitState.SUCCESS;
-		} else if (build.getResult() == Result.UNSTABLE){
-			state = GHCommitState.valueOf(GhprbTrigger.getDscp().getUnstableAs());
-		} else {
-			state = GHCommitState.FAILURE;
+		GHCommitState state = getCommitState(build.getResult());
+		String message = c.isMerged() ? "Merged build finished." : "Build finished.";
+		logger.log(Level.INFO,"State: {0}; {1}",new Object[]{state,message});
+		repo.createCommitStatus(build, state, message, c.getPullID(), trace == null ? null : traceFinished(build, trace));
+		if (build.getResult() != Result.ABORTED) {
+			GhprbBuildResultCache.get().put(build.getProject().getFullName(), c, state,
+					Jenkins.getInstance().getRootUrl() + build.getUrl(), message, build.getNumber(), System.currentTimeMillis());
 		}
-		logger.log(Level.INFO,"State: {0}; {1}",new Object[]{state,(c.isMerged() ? "Merged build finished." : "Build finished.")});
-		repo.createCommitStatus(build, state, (c.isMerged() ? "Merged build finished." : "Build finished."),c.getPullID() );
 
+		final AbstractBuild finished = build;
+		final int pullID = c.getPullID();
+		final GHCommitState result = state;
+		GhprbGitHubExecutor.get().submit(new Runnable() {
+			public void run() {
+				addResultComment(finished, pullID, result);
+
+				// close failed pull request automatically
+				if (result == GHCommitState.FAILURE && trigger.isAutoCloseFailedPullRequests()) {
+
+					try {
+						GHPullRequest pr = repo.getPullRequest(pullID);
+
+						if (pr.getState().equals(GHIssueState.OPEN)) {
+							repo.closePullRequest(pullID);
+						}
+					} catch (IOException ex) {
+						logger.log(Level.SEVERE, "Can't close pull request", ex);
+					}
+				}
+			}
+		});
+	}
+
+	private Runnable traceFinished(final AbstractBuild build, final GhprbTraceAction trace) {
+		return new Runnable() {
+			public void run() {
+				trace.mark(GhprbTraceAction.Stage.STATUS_POSTED);
+				GhprbMetrics.get().recordTrace(build.getProject().getFullName(), trace);
+				try {
+					build.save();
+				} catch (IOException ex) {
+					logger.log(Level.WARNING, "Can't save trace of build " + build.getFullDisplayName(), ex);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Reports the result to all members of the batch. A failed batch is split in halves which are
+	 * built separately, until the failing pull request is built alone and gets the failure reported.
+	 * An aborted batch says nothing about its members, they are left pending without comments.
+	 */
+	private void onBatchCompleted(AbstractBuild build, GhprbBatchCause c) {
+		if(build.getResult() == Result.ABORTED){
+			logger.log(Level.INFO, "Batch of {0} was aborted", c.getPullIDs(", "));
+			String url = Jenkins.getInstance().getRootUrl() + build.getUrl();
+			for(GhprbCause member : c.getMembers()){
+				repo.createCommitStatus(member.getCommit(), GHCommitState.PENDING, url, "Batch build aborted.", member.getPullID());
+			}
+			return;
+		}
+
+		GHCommitState state = getCommitState(build.getResult());
+		logger.log(Level.INFO, "State: {0}; batch of {1}", new Object[]{state, c.getPullIDs(", ")});
+		if(state == GHCommitState.SUCCESS){
+			String url = Jenkins.getInstance().getRootUrl() + build.getUrl();
+			for(GhprbCause member : c.getMembers()){
+				repo.createCommitStatus(member.getCommit(), state, url, "Batch build finished.", member.getPullID());
+			}
+			final AbstractBuild finished = build;
+			final List<GhprbCause> members = c.getMembers();
+			final GHCommitState result = state;
+			GhprbGitHubExecutor.get().submit(new Runnable() {
+				public void run() {
+					for(GhprbCause member : members){
+						addResultComment(finished, member.getPullID(), result);
+					}
+				}
+			});
+			return;
+		}
+
+		List<GhprbCause> members = c.getMembers();
+		for(GhprbCause member : members){
+			repo.createCommitStatus(member.getCommit(), GHCommitState.PENDING, null, "Batch build failed, bisecting.", member.getPullID());
+		}
+		int half = members.size() / 2;
+		startBatch(members.subList(0, half));
+		startBatch(members.subList(half, members.size()));
+	}
+
+	private void addResultComment(AbstractBuild build, int pullID, GHCommitState state) {
 		String publishedURL = GhprbTrigger.getDscp().getPublishedURL();
 		if (publishedURL != null && !publishedURL.isEmpty()) {
 			StringBuilder msg = new StringBuilder();
@@ -121,7 +475,7 @@ public class GhprbBuilds {
 					// wrap log in "code" markdown
 					msg.append("\n\n**Build Log**\n*last ").append(numLines).append(" lines*\n");
 					msg.append("\n ```\n");
-					List<String> log = build.getLog(numLines);
+					List<String> log = GhprbLogTail.tail(build.getLogFile(), build.getCharset(), numLines, GhprbLogTail.MAX_EXCERPT_BYTES);
 					for (String line : log) {
 						msg.append(line).append('\n');
 					}
@@ -131,20 +485,10 @@ public class GhprbBuilds {
 				}
 			}
 
-			repo.addComment(c.getPullID(), msg.toString());
-		}
-
-		// close failed pull request automatically
-		if (state == GHCommitState.FAILURE && trigger.isAutoCloseFailedPullRequests()) {
-
-			try {
-				GHPullRequest pr = repo.getPullRequest(c.getPullID());
-
-				if (pr.getState().equals(GHIssueState.OPEN)) {
-					repo.closePullRequest(c.getPullID());
-				}
-			} catch (IOException ex) {
-				logger.log(Level.SEVERE, "Can't close pull request", ex);
+			if (GhprbTrigger.getDscp().isEditSummaryComment()) {
+				repo.setSummaryComment(pullID, msg.toString());
+			} else {
+				repo.addComment(pullID, msg.toString());
 			}
 		}
 	}
@@ -11,19 +11,32 @@ public class GhprbCause extends Cause{
 	private final String commit;
 	private final int pullID;
 	private final boolean merged;
-	private final String targetBranch;
-	private final String authorEmail;
+	// interned, shared by the causes of all builds
+	private String targetBranch;
+	private String authorEmail;
 	private final String title;
+	private final String baseCommit;
 
-	public GhprbCause(String commit, int pullID, boolean merged, String targetBranch, String authorEmail, String title){
+	public GhprbCause(String commit, int pullID, boolean merged, String targetBranch, String baseCommit, String authorEmail, String title){
 		this.commit = commit;
+		this.baseCommit = baseCommit;
 		this.pullID = pullID;
 		this.merged = merged;
-		this.targetBranch = targetBranch;
-		this.authorEmail = authorEmail;
+		this.targetBranch = intern(targetBranch);
+		this.authorEmail = intern(authorEmail);
 		this.title = title;
 	}
 
+	private Object readResolve(){
+		targetBranch = intern(targetBranch);
+		authorEmail = intern(authorEmail);
+		return this;
+	}
+
+	private static String intern(String s){
+		return s == null ? null : s.intern();
+	}
+
 	@Override
 	public String getShortDescription() {
 		return "GitHub pull request #" + pullID + " of commit " + commit + (merged? " automatically merged." : ".");
@@ -45,6 +58,14 @@ public class GhprbCause extends Cause{
 		return targetBranch;
 	}
 
+	/**
+	 * Returns the SHA of the target branch tip at the time the build was triggered.
+	 * Can be null for causes created before this was recorded.
+	 */
+	public String getBaseCommit() {
+		return baseCommit;
+	}
+
 	public String getAuthorEmail() {
 		return authorEmail;
 	}
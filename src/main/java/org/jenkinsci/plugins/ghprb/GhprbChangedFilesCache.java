@@ -0,0 +1,93 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Singleton cache of files changed by pull requests, keyed by repository, target branch and head SHA.
+ * The listing of a given head against a given branch doesn't change, so it is fetched once and shared by
+ * all jobs building the repository. Concurrent requests for the same head wait for a single fetch.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbChangedFilesCache {
+
+	private static final int MAX_ENTRIES = 1000;
+	// GitHub lists at most this many files of a pull request
+	static final int MAX_LISTED_FILES = 3000;
+	private static GhprbChangedFilesCache cache = new GhprbChangedFilesCache();
+
+	public static GhprbChangedFilesCache get(){
+		return cache;
+	}
+
+	// repo-name:target@sha : changed files
+	private final Map<String,FutureTask<List<String>>> files = new LinkedHashMap<String,FutureTask<List<String>>>(16, 0.75f, true){
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,FutureTask<List<String>>> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	/**
+	 * Returns files changed by the pull request, null if there are more than GitHub lists.
+	 */
+	public List<String> getChangedFiles(final GhprbRepository repo, final int id, String target, String sha) throws IOException{
+		String key = repo.getName() + ":" + target + "@" + sha;
+		FutureTask<List<String>> task;
+		boolean created = false;
+		synchronized(files){
+			task = files.get(key);
+			if(task == null){
+				task = new FutureTask<List<String>>(new Callable<List<String>>() {
+					public List<String> call() throws IOException {
+						return fetch(repo, id);
+					}
+				});
+				files.put(key, task);
+				created = true;
+			}
+		}
+		if(created){
+			task.run();
+		}
+
+		try{
+			return task.get();
+		}catch(InterruptedException ex){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for changed files of " + key);
+		}catch(ExecutionException ex){
+			synchronized(files){
+				if(files.get(key) == task) files.remove(key);
+			}
+			if(ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+			throw new IOException("Couldn't obtain changed files of " + key + ": " + ex.getCause());
+		}
+	}
+
+	private static List<String> fetch(GhprbRepository repo, int id) throws IOException{
+		JSONArray json = repo.getGitHub().getApiClient().getPages("/repos/" + repo.getName() + "/pulls/" + id + "/files?per_page=100");
+		// the listing was cut, the missing files could be the relevant ones
+		if(json.size() >= MAX_LISTED_FILES) return null;
+		List<String> ret = new ArrayList<String>(json.size());
+		for(Object o : json){
+			JSONObject file = (JSONObject) o;
+			ret.add(file.getString("filename"));
+			// renamed file touches the old path too
+			if(file.has("previous_filename")){
+				ret.add(file.getString("previous_filename"));
+			}
+		}
+		return Collections.unmodifiableList(ret);
+	}
+}
@@ -0,0 +1,197 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.net.ssl.SSLException;
+
+/**
+ * Circuit breaker of one GitHub server. After {@link #FAILURE_THRESHOLD} consecutive failed requests the
+ * circuit opens and requests fail fast for {@link #OPEN_TIME} ms. Then a single probe request is let through
+ * (half-open); its success closes the circuit, its failure opens it again.
+ *
+ * Only connection errors, timeouts, 5xx responses and exhausted rate limit count as failures. Other
+ * error responses (404, 401, 422, ...) mean the server is alive, so they count as a success.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbCircuitBreaker {
+
+	private static final Logger logger = Logger.getLogger(GhprbCircuitBreaker.class.getName());
+	static final int FAILURE_THRESHOLD = 5;
+	static final long OPEN_TIME = 30000; // ms
+	// github-api keeps the message of HttpURLConnection in the cause of its exceptions
+	private static final Pattern responseCodePattern = Pattern.compile("HTTP response code: (\\d{3})");
+
+	// server api url : its breaker
+	private static final Map<String,GhprbCircuitBreaker> breakers = new ConcurrentHashMap<String,GhprbCircuitBreaker>();
+
+	public static GhprbCircuitBreaker get(String serverAPIUrl){
+		GhprbCircuitBreaker breaker = breakers.get(serverAPIUrl);
+		if(breaker == null){
+			synchronized(breakers){
+				breaker = breakers.get(serverAPIUrl);
+				if(breaker == null){
+					breaker = new GhprbCircuitBreaker(serverAPIUrl);
+					breakers.put(serverAPIUrl, breaker);
+				}
+			}
+		}
+		return breaker;
+	}
+
+	/**
+	 * Returns the breaker of the configured GitHub server.
+	 */
+	public static GhprbCircuitBreaker get(){
+		return get(GhprbTrigger.getDscp().getServerAPIUrl());
+	}
+
+	private enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private final String server;
+	private State state = State.CLOSED;
+	private int failures = 0;
+	private long openedAt = 0;
+
+	private GhprbCircuitBreaker(String server){
+		this.server = server;
+	}
+
+	/**
+	 * Returns true if a request can be sent. The caller must report its outcome by
+	 * {@link #recordSuccess()} or {@link #recordFailure(IOException)}.
+	 */
+	public synchronized boolean allowRequest(){
+		switch(state){
+			case CLOSED:
+				return true;
+			case OPEN:
+				if(System.currentTimeMillis() - openedAt < OPEN_TIME) return false;
+				logger.log(Level.INFO, "Probing GitHub server {0}", server);
+				state = State.HALF_OPEN;
+				openedAt = System.currentTimeMillis();
+				return true;
+			default:
+				// another probe is running, unless its outcome got lost
+				if(System.currentTimeMillis() - openedAt < OPEN_TIME) return false;
+				openedAt = System.currentTimeMillis();
+				return true;
+		}
+	}
+
+	/**
+	 * Same as {@link #allowRequest()} but throws {@link OpenException} if the request can't be sent.
+	 */
+	public void checkRequest() throws OpenException{
+		if(!allowRequest()){
+			throw new OpenException(server, getRetryDelay());
+		}
+	}
+
+	public synchronized void recordSuccess(){
+		if(state != State.CLOSED){
+			logger.log(Level.INFO, "GitHub server {0} is available again", server);
+		}
+		state = State.CLOSED;
+		failures = 0;
+	}
+
+	public void recordFailure(IOException ex){
+		// nothing was sent
+		if(ex instanceof OpenException) return;
+		if(!isServerFailure(ex)){
+			recordSuccess();
+			return;
+		}
+		synchronized(this){
+			failures++;
+			if(state == State.HALF_OPEN || (state == State.CLOSED && failures >= FAILURE_THRESHOLD)){
+				logger.log(Level.WARNING, "GitHub server {0} failed {1} times, failing fast for {2}ms", new Object[]{server, failures, OPEN_TIME});
+				state = State.OPEN;
+				openedAt = System.currentTimeMillis();
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the exception means the server can't serve requests now: the connection failed
+	 * or timed out, the server failed (5xx) or the rate limit is exhausted (403).
+	 */
+	static boolean isServerFailure(IOException ex){
+		for(Throwable t = ex; t != null; t = t.getCause()){
+			if(t instanceof ResponseException) return ((ResponseException) t).isServerFailure();
+			if(t instanceof FileNotFoundException) return false;
+			if(t instanceof SocketException || t instanceof SocketTimeoutException
+					|| t instanceof UnknownHostException || t instanceof SSLException){
+				return true;
+			}
+			String message = t.getMessage();
+			if(message == null) continue;
+			// github-api puts the body of the error response to the message
+			if(message.contains("API rate limit exceeded")) return true;
+			Matcher m = responseCodePattern.matcher(message);
+			if(m.find()) return Integer.parseInt(m.group(1)) >= 500;
+		}
+		return false;
+	}
+
+	public synchronized boolean isOpen(){
+		return state != State.CLOSED;
+	}
+
+	/**
+	 * Returns milliseconds until the next request may be let through.
+	 */
+	public synchronized long getRetryDelay(){
+		if(state == State.CLOSED) return 0;
+		return Math.max(0, OPEN_TIME - (System.currentTimeMillis() - openedAt));
+	}
+
+	/**
+	 * Error response of the server, other than 404 which is reported as {@link FileNotFoundException}.
+	 */
+	public static class ResponseException extends IOException {
+		private final int code;
+		private final boolean rateLimited;
+
+		public ResponseException(String url, int code, boolean rateLimited){
+			super("Server returned HTTP response code: " + code + " for URL: " + url
+					+ (rateLimited ? ", API rate limit exceeded" : ""));
+			this.code = code;
+			this.rateLimited = rateLimited;
+		}
+
+		public int getCode() {
+			return code;
+		}
+
+		public boolean isServerFailure() {
+			return code >= 500 || rateLimited;
+		}
+	}
+
+	/**
+	 * Thrown instead of sending a request while the circuit is open.
+	 */
+	public static class OpenException extends IOException {
+		private final long retryDelay;
+
+		public OpenException(String server, long retryDelay){
+			super("GitHub server " + server + " is not available, circuit is open");
+			this.retryDelay = retryDelay;
+		}
+
+		public long getRetryDelay() {
+			return retryDelay;
+		}
+	}
+}
@@ -0,0 +1,285 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.github.GHCommitState;
+
+/**
+ * Singleton which publishes commit statuses in background, so run listeners and hook handlers don't
+ * wait for GitHub.
+ *
+ * Only the latest state per job, repository and commit is kept: statuses are created without a context,
+ * so GitHub shows just the latest one anyway and intermediate states of a build (e.g. "Build started"
+ * when "Build finished" is already waiting) are dropped. States of different jobs are all sent. Failed writes are retried with exponential
+ * backoff; when all attempts fail the message is sent as a comment, if enabled. While the circuit
+ * of the GitHub server is open, statuses wait without using up their attempts and go out after it recovers.
+ *
+ * The last status written to each commit is remembered in a bounded cache and a status which
+ * wouldn't change anything on GitHub isn't sent again.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbCommitStatusPublisher {
+
+	private static final Logger logger = Logger.getLogger(GhprbCommitStatusPublisher.class.getName());
+	private static final int MAX_ATTEMPTS = 5;
+	private static final long INITIAL_BACKOFF = 1000; // ms
+	private static final int MAX_WRITTEN = 10000;
+	private static GhprbCommitStatusPublisher publisher = new GhprbCommitStatusPublisher();
+
+	public static GhprbCommitStatusPublisher get(){
+		return publisher;
+	}
+
+	// job-name repo-name@sha : status waiting to be published
+	private final Map<String,Status> pending = new HashMap<String,Status>();
+
+	// repo-name@sha : last status written to GitHub
+	private final Map<String,Status> written = new LinkedHashMap<String,Status>(16, 0.75f, true){
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Status> eldest) {
+			return size() > MAX_WRITTEN;
+		}
+	};
+
+	// only times the attempts, the statuses are posted by GhprbGitHubExecutor
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "GHPRB commit status scheduler");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong superseded = new AtomicLong();
+	private final AtomicLong redundant = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong(); // ns
+	private final AtomicLong maxLatency = new AtomicLong(); // ns
+
+	public void publish(GhprbRepository repo, String sha1, GHCommitState state, String url, String message, int id){
+		publish(repo, sha1, state, url, message, id, null);
+	}
+
+	/**
+	 * Publishes the status and runs {@code published} once it is on GitHub, unless it gets superseded
+	 * or fails.
+	 */
+	public void publish(GhprbRepository repo, String sha1, GHCommitState state, String url, String message, int id, Runnable published){
+		String key = repo.getJobName() + " " + repo.getName() + "@" + sha1;
+		Status status = new Status(repo, sha1, state, url, message, id, published);
+		synchronized(pending){
+			Status previous = pending.put(key, status);
+			if(previous != null){
+				// the task scheduled for the previous status publishes this one instead
+				superseded.incrementAndGet();
+				logger.log(Level.FINE, "Status {0} of {1} superseded by {2}", new Object[]{previous.state, key, state});
+				return;
+			}
+		}
+		schedule(key, 0);
+	}
+
+	private void schedule(final String key, long delay){
+		final Runnable publish = new Runnable() {
+			public void run() {
+				publishPending(key);
+			}
+		};
+		executor.schedule(new Runnable() {
+			public void run() {
+				GhprbGitHubExecutor.get().submit(publish);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void publishPending(String key){
+		Status status;
+		synchronized(pending){
+			status = pending.get(key);
+		}
+		if(status == null) return;
+
+		// the commit has a single status without a context, whichever job wrote it
+		String commit = status.repo.getName() + "@" + status.sha1;
+		if(status.equals(getWritten(commit))){
+			redundant.incrementAndGet();
+			logger.log(Level.FINE, "Status {0} of {1} is already set", new Object[]{status.state, key});
+			status.published();
+			done(key, status);
+			return;
+		}
+
+		try {
+			status.repo.postCommitStatus(status.sha1, status.state, status.url, status.message);
+			synchronized(written){
+				written.put(commit, status);
+			}
+			published.incrementAndGet();
+			recordLatency(System.nanoTime() - status.submitted);
+			status.published();
+			done(key, status);
+		} catch (GhprbCircuitBreaker.OpenException ex) {
+			// GitHub is down, wait for it without using up the attempts
+			logger.log(Level.FINE, "GitHub is not available, status of {0} waits {1}ms", new Object[]{key, ex.getRetryDelay()});
+			retry(key, status, Math.max(ex.getRetryDelay(), INITIAL_BACKOFF));
+		} catch (IOException ex) {
+			status.attempts++;
+			if(status.attempts < MAX_ATTEMPTS){
+				long backoff = INITIAL_BACKOFF << (status.attempts - 1);
+				logger.log(Level.INFO, "Could not update commit status of " + key + ", retrying in " + backoff + "ms", ex);
+				retried.incrementAndGet();
+				retry(key, status, backoff);
+				return;
+			}
+			failed.incrementAndGet();
+			if(GhprbTrigger.getDscp().isUseComments()){
+				logger.log(Level.INFO, "Could not update commit status of the Pull Request on GitHub. Trying to send comment.", ex);
+				status.repo.addComment(status.id, status.message);
+			}else{
+				logger.log(Level.SEVERE, "Could not update commit status of the Pull Request on GitHub.", ex);
+			}
+			done(key, status);
+		}
+	}
+
+	private Status getWritten(String key){
+		synchronized(written){
+			return written.get(key);
+		}
+	}
+
+	// removes the status, or publishes the one which superseded it meanwhile
+	private void done(String key, Status status){
+		synchronized(pending){
+			Status current = pending.get(key);
+			if(current == null) return;
+			if(current == status){
+				pending.remove(key);
+				return;
+			}
+		}
+		schedule(key, 0);
+	}
+
+	private void retry(String key, Status status, long backoff){
+		synchronized(pending){
+			if(pending.get(key) != status){
+				// superseded meanwhile, the newer status can go right away
+				backoff = 0;
+			}
+		}
+		schedule(key, backoff);
+	}
+
+	private void recordLatency(long latency){
+		totalLatency.addAndGet(latency);
+		long max;
+		while(latency > (max = maxLatency.get())){
+			if(maxLatency.compareAndSet(max, latency)) break;
+		}
+	}
+
+	public int getPendingCount(){
+		synchronized(pending){
+			return pending.size();
+		}
+	}
+
+	public long getPublishedCount(){
+		return published.get();
+	}
+
+	public long getFailedCount(){
+		return failed.get();
+	}
+
+	public long getRetriedCount(){
+		return retried.get();
+	}
+
+	public long getSupersededCount(){
+		return superseded.get();
+	}
+
+	/**
+	 * Returns how many writes were avoided because the commit already had the same status.
+	 */
+	public long getRedundantCount(){
+		return redundant.get();
+	}
+
+	/**
+	 * Returns the average time in milliseconds from submitting a status to publishing it.
+	 */
+	public long getAverageLatency(){
+		long count = published.get();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalLatency.get() / count);
+	}
+
+	public long getMaxLatency(){
+		return TimeUnit.NANOSECONDS.toMillis(maxLatency.get());
+	}
+
+	private static class Status {
+		private final GhprbRepository repo;
+		private final String sha1;
+		private final GHCommitState state;
+		private final String url;
+		private final String message;
+		private final int id;
+		private final Runnable published;
+		private final long submitted = System.nanoTime();
+		private int attempts = 0;
+
+		private Status(GhprbRepository repo, String sha1, GHCommitState state, String url, String message, int id, Runnable published){
+			this.repo = repo;
+			this.sha1 = sha1;
+			this.state = state;
+			this.url = url;
+			this.message = message;
+			this.id = id;
+			this.published = published;
+		}
+
+		private void published(){
+			if(published == null) return;
+			try{
+				published.run();
+			}catch(RuntimeException ex){
+				logger.log(Level.WARNING, "Callback of published status failed", ex);
+			}
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Status)) return false;
+			Status o = (Status) obj;
+			return sha1.equals(o.sha1) && state == o.state && equal(url, o.url) && equal(message, o.message);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = 7;
+			hash = 89 * hash + sha1.hashCode();
+			hash = 89 * hash + state.hashCode();
+			hash = 89 * hash + (message != null ? message.hashCode() : 0);
+			return hash;
+		}
+
+		private static boolean equal(String a, String b){
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package org.jenkinsci.plugins.ghprb;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.EnvironmentContributor;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Provides the pull request variables of builds triggered by the plugin from their {@link GhprbCause},
+ * so they don't have to be stored with each build as parameters. Only {@code sha1}, which the Git SCM
+ * needs to check the pull request out, and the commits stay parameters; they keep the parameters of
+ * builds of different commits apart, so the queue doesn't fold them together. A job declaring one of
+ * the variables as its parameter gets the value as that parameter, as its default would shadow it.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+@Extension
+public class GhprbEnvironmentContributor extends EnvironmentContributor {
+
+	@Override
+	public void buildEnvironmentFor(Run r, EnvVars envs, TaskListener listener) {
+		GhprbCause cause = (GhprbCause) r.getCause(GhprbCause.class);
+		if(cause == null) return;
+		envs.putAll(getVariables(cause));
+	}
+
+	/**
+	 * Returns the variables of a build with the cause.
+	 */
+	static Map<String,String> getVariables(GhprbCause cause) {
+		Map<String,String> vars = new LinkedHashMap<String,String>();
+		String pullId = String.valueOf(cause.getPullID());
+		vars.put("ghprbActualCommit", cause.getCommit());
+		vars.put("ghprbPullId", pullId);
+		vars.put("ghprbTargetBranch", String.valueOf(cause.getTargetBranch()));
+		// Backward compatibility (GD)
+		vars.put("pull_id", pullId);
+		vars.put("base_branch", String.valueOf(cause.getTargetBranch()));
+		// it's possible the GHUser doesn't have an associated email address
+		vars.put("ghprbPullAuthorEmail", cause.getAuthorEmail() != null ? cause.getAuthorEmail() : "");
+		if(cause instanceof GhprbBatchCause){
+			GhprbBatchCause batch = (GhprbBatchCause) cause;
+			vars.put("ghprbBatchPullIds", batch.getPullIDs(" "));
+			vars.put("ghprbBatchCommits", batch.getCommits(" "));
+		}
+		return vars;
+	}
+}
@@ -0,0 +1,134 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.github.GHRepository;
+
+/**
+ * Singleton cache of repositories fetched from GitHub, keyed by the token (and so the server and
+ * identity) and the repository name. All jobs building a repository share one handle, concurrent
+ * lookups of the same repository wait for a single request. Failed lookups are remembered for
+ * {@link #LOOKUP_RETRY_TIME} ms so jobs on a missing repository don't retry them right away.
+ *
+ * Handles are refreshed after {@link #MAX_AGE} ms, keeping the old one if GitHub isn't available,
+ * and dropped when the repository answers 404.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbGHRepositoryCache {
+	private static final Logger logger = Logger.getLogger(GhprbGHRepositoryCache.class.getName());
+	static final long LOOKUP_RETRY_TIME = 60000; // ms
+	static final long MAX_AGE = 3600000; // ms
+
+	private static GhprbGHRepositoryCache cache = new GhprbGHRepositoryCache();
+
+	public static GhprbGHRepositoryCache get(){
+		return cache;
+	}
+
+	// token : lower-cased repo-name : entry, tokens are replaced on reconfiguration and their entries go with them
+	private final Map<GhprbToken,Map<String,Entry>> entries = new WeakHashMap<GhprbToken,Map<String,Entry>>();
+
+	private static class Entry {
+		private GHRepository repo;
+		private long fetchedAt;
+		private long failedAt;
+	}
+
+	private Entry getEntry(GhprbToken token, String reponame){
+		String key = reponame.toLowerCase(Locale.ENGLISH);
+		synchronized(entries){
+			Map<String,Entry> repos = entries.get(token);
+			if(repos == null){
+				repos = new HashMap<String,Entry>();
+				entries.put(token, repos);
+			}
+			Entry entry = repos.get(key);
+			if(entry == null){
+				entry = new Entry();
+				repos.put(key, entry);
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * Returns true if there is no handle of the repository and its lookup failed recently.
+	 */
+	public boolean isFailedRecently(GhprbToken token, String reponame){
+		Entry entry = getEntry(token, reponame);
+		synchronized(entry){
+			return entry.repo == null && System.currentTimeMillis() - entry.failedAt < LOOKUP_RETRY_TIME;
+		}
+	}
+
+	/**
+	 * Returns the repository as seen by the token, fetching it if it isn't cached or is too old.
+	 * @return null if the lookup failed recently
+	 * @throws IOException if the lookup fails and there is no handle from before
+	 */
+	public GHRepository get(GhprbToken token, String reponame) throws IOException{
+		return get(token, reponame, null);
+	}
+
+	/**
+	 * Same as {@link #get(GhprbToken, String)}, reporting the outcome to the breaker if the repository
+	 * was actually fetched; a cached handle says nothing about the server.
+	 */
+	public GHRepository get(GhprbToken token, String reponame, GhprbCircuitBreaker breaker) throws IOException{
+		Entry entry = getEntry(token, reponame);
+		synchronized(entry){
+			long now = System.currentTimeMillis();
+			if(entry.repo != null && now - entry.fetchedAt < MAX_AGE) return entry.repo;
+			if(now - entry.failedAt < LOOKUP_RETRY_TIME) return entry.repo;
+
+			long start = System.nanoTime();
+			try {
+				GHRepository repo = token.get().getRepository(reponame);
+				GhprbMetrics.get().recordCall(GhprbMetrics.Call.GET_REPOSITORY, start, true);
+				if(breaker != null) breaker.recordSuccess();
+				String name = reponame.substring(reponame.indexOf('/') + 1);
+				if(!name.equalsIgnoreCase(repo.getName())){
+					logger.log(Level.WARNING, "Repository {0} was renamed to {1}, the GitHub project of its jobs should be updated", new Object[]{reponame, repo.getName()});
+				}
+				entry.repo = repo;
+				entry.fetchedAt = now;
+				entry.failedAt = 0;
+				return repo;
+			} catch (FileNotFoundException ex) {
+				GhprbMetrics.get().recordCall(GhprbMetrics.Call.GET_REPOSITORY, start, false);
+				if(breaker != null) breaker.recordFailure(ex);
+				entry.repo = null;
+				entry.failedAt = now;
+				throw ex;
+			} catch (IOException ex) {
+				GhprbMetrics.get().recordCall(GhprbMetrics.Call.GET_REPOSITORY, start, false);
+				if(breaker != null) breaker.recordFailure(ex);
+				entry.failedAt = now;
+				if(entry.repo != null){
+					logger.log(Level.FINE, "Couldn''t refresh repo {0}, using the old one", reponame);
+					return entry.repo;
+				}
+				throw ex;
+			}
+		}
+	}
+
+	/**
+	 * Drops the handles of the repository of all tokens, after it answered 404.
+	 */
+	public void invalidate(String reponame){
+		String key = reponame.toLowerCase(Locale.ENGLISH);
+		synchronized(entries){
+			for(Map<String,Entry> repos : entries.values()){
+				repos.remove(key);
+			}
+		}
+	}
+}
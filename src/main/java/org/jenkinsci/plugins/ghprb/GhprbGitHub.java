@@ -1,6 +1,9 @@
 package org.jenkinsci.plugins.ghprb;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.kohsuke.github.GHOrganization;
@@ -12,28 +15,75 @@ import org.kohsuke.github.GitHub;
  */
 public class GhprbGitHub {
 	private static final Logger logger = Logger.getLogger(GhprbGitHub.class.getName());
-	private GitHub gh;
-
-	private void connect() throws IOException{
-		String accessToken = GhprbTrigger.getDscp().getAccessToken();
-		String serverAPIUrl = GhprbTrigger.getDscp().getServerAPIUrl();
-		if(accessToken != null && !accessToken.isEmpty()) {
-			try {
-				gh = GitHub.connectUsingOAuth(serverAPIUrl, accessToken);
-			} catch(IOException e) {
-				logger.log(Level.SEVERE, "Can''t connect to {0} using oauth", serverAPIUrl);
-				throw e;
+	private List<GhprbToken> tokens;
+	private GhprbApiClient api;
+
+	/**
+	 * Returns the configured credentials followed by the additional access tokens.
+	 */
+	public synchronized List<GhprbToken> getTokens(){
+		if(tokens == null){
+			GhprbTrigger.DescriptorImpl dscp = GhprbTrigger.getDscp();
+			List<GhprbToken> ret = new ArrayList<GhprbToken>();
+			ret.add(new GhprbToken("primary", dscp.getServerAPIUrl(), dscp.getAccessToken(), dscp.getUsername(), dscp.getPassword(), true));
+			for(String token : dscp.getAdditionalAccessTokenList()){
+				ret.add(new GhprbToken("token-" + ret.size(), dscp.getServerAPIUrl(), token, null, null, false));
 			}
-		} else {
-			gh = GitHub.connect(GhprbTrigger.getDscp().getUsername(), null, GhprbTrigger.getDscp().getPassword());
+			tokens = Collections.unmodifiableList(ret);
 		}
+		return tokens;
 	}
 
+	/**
+	 * Returns GitHub connected with the configured credentials, the identity writing statuses, comments
+	 * and hooks.
+	 */
 	public GitHub get() throws IOException{
-		if(gh == null){
-			connect();
+		return getPrimaryToken().get();
+	}
+
+	/**
+	 * Returns the configured credentials.
+	 */
+	public GhprbToken getPrimaryToken(){
+		return getTokens().get(0);
+	}
+
+	/**
+	 * Returns the token for a write and counts the call.
+	 */
+	public GhprbToken getWriteToken(){
+		GhprbToken token = getPrimaryToken();
+		token.recordWrite();
+		return token;
+	}
+
+	/**
+	 * Returns the token with the most remaining quota for a read and counts the call. Tokens whose
+	 * quota is unknown are asked for it first.
+	 */
+	public GhprbToken getReadToken(){
+		List<GhprbToken> tokens = getTokens();
+		if(tokens.size() == 1){
+			tokens.get(0).recordRead();
+			return tokens.get(0);
+		}
+		GhprbToken ret = null;
+		for(GhprbToken token : tokens){
+			token.refreshRateLimit();
+			if(ret == null || token.getRemaining() > ret.getRemaining()){
+				ret = token;
+			}
+		}
+		ret.recordRead();
+		return ret;
+	}
+
+	public GhprbApiClient getApiClient(){
+		if(api == null){
+			api = new GhprbApiClient(GhprbTrigger.getDscp().getServerAPIUrl(), this);
 		}
-		return gh;
+		return api;
 	}
 
 	public boolean isUserMemberOfOrganization(String organisation, GHUser member){
@@ -0,0 +1,202 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Singleton executor running all work talking to GitHub: polling, hook handling, commit statuses and
+ * comments. Keeps slow GitHub responses away from the Jenkins cron, request and run listener threads.
+ *
+ * By default it is a pool of {@code gitHubThreads} platform threads; with 0 threads configured it uses
+ * virtual threads if the runtime supports them. Independently of the threads, at most
+ * {@code gitHubMaxRequestsPerHost} requests are sent to one GitHub server at a time; the permits are
+ * taken around each request by {@link GhprbApiClient} and by the connector of {@link GhprbToken#get()},
+ * so a long task like a poll cycle doesn't hold one while it isn't waiting for GitHub.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbGitHubExecutor {
+
+	private static final Logger logger = Logger.getLogger(GhprbGitHubExecutor.class.getName());
+	private static final int DEFAULT_THREADS = 8;
+	private static GhprbGitHubExecutor executor = new GhprbGitHubExecutor();
+
+	public static GhprbGitHubExecutor get(){
+		return executor;
+	}
+
+	private ExecutorService pool;
+	// host : permits for requests, kept for the lifetime of the plugin so held permits are returned to them
+	private final Map<String,Permits> hosts = new HashMap<String,Permits>();
+	// key : tasks waiting for the running task of the same key, in order of submission
+	private final Map<Object,LinkedList<Runnable>> serial = new HashMap<Object,LinkedList<Runnable>>();
+
+	/**
+	 * Runs the task talking to GitHub.
+	 */
+	public Future<?> submit(final Runnable task){
+		return getPool().submit(new Runnable() {
+			public void run() {
+				try{
+					task.run();
+				}catch(RuntimeException ex){
+					logger.log(Level.SEVERE, "GitHub task failed", ex);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs the task after all tasks submitted before with the same key have finished, so e.g. hooks of
+	 * one repository are handled in the order they came.
+	 */
+	public void submitSerial(Object key, Runnable task){
+		synchronized(serial){
+			LinkedList<Runnable> waiting = serial.get(key);
+			if(waiting != null){
+				waiting.add(task);
+				return;
+			}
+			serial.put(key, new LinkedList<Runnable>());
+		}
+		submit(serialTask(key, task));
+	}
+
+	private Runnable serialTask(final Object key, final Runnable task){
+		return new Runnable() {
+			public void run() {
+				try{
+					task.run();
+				}finally{
+					Runnable next;
+					synchronized(serial){
+						next = serial.get(key).poll();
+						if(next == null) serial.remove(key);
+					}
+					if(next != null) submit(serialTask(key, next));
+				}
+			}
+		};
+	}
+
+	/**
+	 * Waits for a permit to send a request to the host. The caller has to release the returned
+	 * semaphore once the response arrives.
+	 */
+	public Semaphore acquire(String host){
+		Semaphore permits = getPermits(host);
+		permits.acquireUninterruptibly();
+		return permits;
+	}
+
+	/**
+	 * Applies changed configuration. Tasks already submitted finish in the old pool, requests already
+	 * sent keep their permits.
+	 */
+	public synchronized void reconfigure(){
+		if(pool != null){
+			pool.shutdown();
+			pool = null;
+		}
+		int max = getMaxRequestsPerHost();
+		synchronized(hosts){
+			for(Permits permits : hosts.values()){
+				permits.resize(max);
+			}
+		}
+	}
+
+	private synchronized ExecutorService getPool(){
+		if(pool == null){
+			int threads = GhprbTrigger.getDscp().getGitHubThreads();
+			pool = threads > 0 ? newPlatformPool(threads) : newVirtualPool();
+		}
+		return pool;
+	}
+
+	private Semaphore getPermits(String host){
+		synchronized(hosts){
+			Permits permits = hosts.get(host);
+			if(permits == null){
+				permits = new Permits(getMaxRequestsPerHost());
+				hosts.put(host, permits);
+			}
+			return permits;
+		}
+	}
+
+	private static int getMaxRequestsPerHost(){
+		int max = GhprbTrigger.getDscp().getGitHubMaxRequestsPerHost();
+		return max > 0 ? max : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Semaphore whose number of permits can change while some are held.
+	 */
+	private static class Permits extends Semaphore {
+		private int max;
+
+		private Permits(int max){
+			super(max);
+			this.max = max;
+		}
+
+		private synchronized void resize(int max){
+			if(max > this.max){
+				release(max - this.max);
+			}else if(max < this.max){
+				// the held ones are taken away as they are released
+				reducePermits(this.max - max);
+			}
+			this.max = max;
+		}
+	}
+
+	static String getHost(String url){
+		try{
+			return new URL(url).getHost();
+		}catch(MalformedURLException ex){
+			return url;
+		}
+	}
+
+	private static ExecutorService newPlatformPool(int threads){
+		ThreadPoolExecutor ret = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "GHPRB GitHub I/O #" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		ret.allowCoreThreadTimeOut(true);
+		return ret;
+	}
+
+	// Executors.newVirtualThreadPerTaskExecutor() is available since Java 21
+	private static ExecutorService newVirtualPool(){
+		try{
+			Method m = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			logger.log(Level.INFO, "Using virtual threads for GitHub I/O");
+			return (ExecutorService) m.invoke(null);
+		}catch(Exception ex){
+			logger.log(Level.INFO, "Virtual threads not available, using {0} platform threads for GitHub I/O", DEFAULT_THREADS);
+			return newPlatformPool(DEFAULT_THREADS);
+		}
+	}
+}
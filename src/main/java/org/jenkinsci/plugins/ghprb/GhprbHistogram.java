@@ -0,0 +1,81 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Lock-free histogram of durations with power-of-two microsecond buckets. Recording doesn't allocate,
+ * so it can stay on in hot paths; percentiles are precise to a factor of two.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbHistogram {
+	private static final int BUCKETS = 40; // the last one covers everything longer than 2^38us, ~3 days
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong(); // us
+	private final AtomicLong max = new AtomicLong(); // us
+
+	public void record(long nanos){
+		long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+		buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+		long m;
+		while(micros > (m = max.get())){
+			if(max.compareAndSet(m, micros)) break;
+		}
+	}
+
+	/**
+	 * Records the time elapsed since {@code start}, taken from {@link System#nanoTime()}.
+	 */
+	public void recordSince(long start){
+		record(System.nanoTime() - start);
+	}
+
+	public long getCount(){
+		return count.get();
+	}
+
+	/**
+	 * Returns the upper bound of the given percentile (0 - 100) in milliseconds.
+	 */
+	public double getPercentile(double percentile){
+		long total = count.get();
+		if(total == 0) return 0;
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++){
+			seen += buckets.get(i);
+			if(seen >= rank){
+				// bucket i holds durations shorter than 2^i us
+				return Math.min(1L << i, max.get()) / 1000.0;
+			}
+		}
+		return max.get() / 1000.0;
+	}
+
+	public double getMean(){
+		long total = count.get();
+		return total == 0 ? 0 : sum.get() / 1000.0 / total;
+	}
+
+	public double getMax(){
+		return max.get() / 1000.0;
+	}
+
+	public JSONObject toJSON(){
+		JSONObject ret = new JSONObject();
+		ret.put("count", getCount());
+		ret.put("meanMs", getMean());
+		ret.put("p50Ms", getPercentile(50));
+		ret.put("p90Ms", getPercentile(90));
+		ret.put("p99Ms", getPercentile(99));
+		ret.put("maxMs", getMax());
+		return ret;
+	}
+}
@@ -0,0 +1,112 @@
+package org.jenkinsci.plugins.ghprb;
+
+import hudson.console.ConsoleNote;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the last lines of a build log for the failure comments without reading the whole log.
+ *
+ * Plain logs are read backwards from the end, block by block, until enough lines are found. This is
+ * safe for charsets encoding the line feed as a single {@code '\n'} byte (UTF-8, ISO-8859-*, ...);
+ * logs in other charsets and gzipped logs can't be read backwards and are streamed instead.
+ * Console notes are stripped and the excerpt is limited to {@code maxBytes} of the log.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbLogTail {
+	/** GitHub refuses comments longer than 65536 characters, keep the excerpt well below. */
+	public static final int MAX_EXCERPT_BYTES = 32 * 1024;
+
+	private static final int BLOCK_SIZE = 8 * 1024;
+
+	private GhprbLogTail(){}
+
+	public static List<String> tail(File log, Charset charset, int lines, int maxBytes) throws IOException{
+		if(lines <= 0 || !log.isFile()) return new ArrayList<String>();
+		if(log.getName().endsWith(".gz") || !isLineFeedSafe(charset)){
+			return tailStream(log, charset, lines, maxBytes);
+		}
+		return tailSeek(log, charset, lines, maxBytes);
+	}
+
+	private static boolean isLineFeedSafe(Charset charset){
+		return Arrays.equals("\n".getBytes(charset), new byte[]{'\n'});
+	}
+
+	private static List<String> tailSeek(File log, Charset charset, int lines, int maxBytes) throws IOException{
+		RandomAccessFile raf = new RandomAccessFile(log, "r");
+		try{
+			long end = raf.length();
+			long limit = Math.max(0, end - maxBytes);
+			long start = end;
+			byte[] block = new byte[BLOCK_SIZE];
+			int newlines = 0;
+
+			// the log usually ends with a line feed which doesn't start another line
+			search:
+			while(start > limit){
+				int len = (int) Math.min(BLOCK_SIZE, start - limit);
+				raf.seek(start - len);
+				raf.readFully(block, 0, len);
+				for(int i = len - 1; i >= 0; i--){
+					if(block[i] == '\n' && start - len + i != end - 1 && ++newlines == lines){
+						start = start - len + i + 1;
+						break search;
+					}
+				}
+				start -= len;
+			}
+			boolean truncated = newlines < lines && start > 0;
+
+			byte[] excerpt = new byte[(int) (end - start)];
+			raf.seek(start);
+			raf.readFully(excerpt);
+			List<String> ret = new ArrayList<String>(lines);
+			for(String line : new String(excerpt, charset).split("\r?\n", -1)){
+				ret.add(ConsoleNote.removeNotes(line));
+			}
+			if(!ret.isEmpty() && ret.get(ret.size() - 1).isEmpty()) ret.remove(ret.size() - 1);
+			// we've hit the byte limit in the middle of a line
+			if(truncated && !ret.isEmpty()) ret.remove(0);
+			return ret;
+		}finally{
+			raf.close();
+		}
+	}
+
+	private static List<String> tailStream(File log, Charset charset, int lines, int maxBytes) throws IOException{
+		FileInputStream in = new FileInputStream(log);
+		try{
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					log.getName().endsWith(".gz") ? new GZIPInputStream(in) : in, charset));
+			LinkedList<String> ret = new LinkedList<String>();
+			int size = 0;
+			String line;
+			while((line = reader.readLine()) != null){
+				ret.add(line);
+				size += line.length() + 1;
+				while(ret.size() > lines || (size > maxBytes && ret.size() > 1)){
+					size -= ret.removeFirst().length() + 1;
+				}
+			}
+			List<String> stripped = new ArrayList<String>(ret.size());
+			for(String l : ret){
+				stripped.add(ConsoleNote.removeNotes(l));
+			}
+			return stripped;
+		}finally{
+			in.close();
+		}
+	}
+}
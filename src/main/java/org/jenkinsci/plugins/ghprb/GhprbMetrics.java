@@ -0,0 +1,381 @@
+package org.jenkinsci.plugins.ghprb;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import net.sf.json.JSONObject;
+import org.kohsuke.github.GHRateLimit;
+
+/**
+ * Singleton collecting metrics of the plugin's hot paths: GitHub API calls, webhook handling, polling,
+ * build triggering and saving of the global configuration. Recording only bumps preallocated counters,
+ * it is cheap enough to be always on. The metrics are served as JSON by {@link GhprbMetricsAction}
+ * and over JMX as {@code org.jenkinsci.plugins.ghprb:type=GhprbMetrics}.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbMetrics implements GhprbMetricsMBean {
+
+	private static final Logger logger = Logger.getLogger(GhprbMetrics.class.getName());
+	private static final String OBJECT_NAME = "org.jenkinsci.plugins.ghprb:type=GhprbMetrics";
+	private static final long RATE_LIMIT_REFRESH = 60000; // ms
+	private static GhprbMetrics metrics = new GhprbMetrics();
+
+	public static GhprbMetrics get(){
+		return metrics;
+	}
+
+	/**
+	 * GitHub API endpoints called by the plugin.
+	 */
+	public enum Call {
+		GET_REPOSITORY,
+		LIST_PULL_REQUESTS,
+		GET_PULL_REQUEST,
+		CREATE_COMMIT_STATUS,
+		ADD_COMMENT,
+		CLOSE_PULL_REQUEST,
+		LIST_HOOKS,
+		CREATE_HOOK,
+		DELETE_HOOK,
+		API_GET,
+		API_POST,
+		API_PATCH
+	}
+
+	/**
+	 * What happened to a pull request which asked for a build.
+	 */
+	public enum Build {
+		TRIGGERED,
+		BATCHED,
+		DEFERRED,
+		REUSED,
+		SKIPPED_BY_PATHS
+	}
+
+	private final GhprbHistogram[] calls = new GhprbHistogram[Call.values().length];
+	private final AtomicLongArray callErrors = new AtomicLongArray(Call.values().length);
+	private final AtomicLongArray builds = new AtomicLongArray(Build.values().length);
+	private final GhprbHistogram webhooks = new GhprbHistogram();
+	private final AtomicLong webhookErrors = new AtomicLong();
+	// repo-name : durations of its poll cycles
+	private final Map<String,GhprbHistogram> pollCycles = new ConcurrentHashMap<String,GhprbHistogram>();
+	private final AtomicLong pullsChecked = new AtomicLong();
+	private final AtomicLong pullsSkipped = new AtomicLong();
+	// job name : latencies of trace stages, the last one is the total
+	private final Map<String,GhprbHistogram[]> traces = new ConcurrentHashMap<String,GhprbHistogram[]>();
+	private final GhprbHistogram saves = new GhprbHistogram();
+	private final AtomicLong lastSaveBytes = new AtomicLong();
+
+	private volatile int rateLimitRemaining = -1;
+	private volatile int rateLimit = -1;
+	private volatile long rateLimitUpdated = 0;
+
+	private GhprbMetrics(){
+		for(int i = 0; i < calls.length; i++){
+			calls[i] = new GhprbHistogram();
+		}
+	}
+
+	/**
+	 * Records a GitHub call started at {@code start}, taken from {@link System#nanoTime()}.
+	 */
+	public void recordCall(Call call, long start, boolean success){
+		calls[call.ordinal()].recordSince(start);
+		if(!success){
+			callErrors.incrementAndGet(call.ordinal());
+		}
+	}
+
+	/**
+	 * Records the rate limit reported by GitHub in response headers.
+	 */
+	public void recordRateLimit(int remaining, int limit){
+		rateLimitRemaining = remaining;
+		rateLimit = limit;
+		rateLimitUpdated = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records handling of a webhook received at {@code received}, taken from {@link System#nanoTime()}.
+	 */
+	public void recordWebhook(long received, boolean success){
+		webhooks.recordSince(received);
+		if(!success){
+			webhookErrors.incrementAndGet();
+		}
+	}
+
+	public void recordPollCycle(String reponame, long start){
+		GhprbHistogram histogram = pollCycles.get(reponame);
+		if(histogram == null){
+			synchronized(pollCycles){
+				histogram = pollCycles.get(reponame);
+				if(histogram == null){
+					histogram = new GhprbHistogram();
+					pollCycles.put(reponame, histogram);
+				}
+			}
+		}
+		histogram.recordSince(start);
+	}
+
+	/**
+	 * Records how many open pull requests a poll cycle checked and how many dormant ones it skipped.
+	 */
+	public void recordPullChecks(int checked, int skipped){
+		pullsChecked.addAndGet(checked);
+		pullsSkipped.addAndGet(skipped);
+	}
+
+	/**
+	 * Records how long it took to reach each stage of the trace from the previous reached one, and the
+	 * total time from the first reached stage to the last one.
+	 */
+	public void recordTrace(String job, GhprbTraceAction trace){
+		GhprbTraceAction.Stage[] stages = GhprbTraceAction.Stage.values();
+		GhprbHistogram[] histograms = traces.get(job);
+		if(histograms == null){
+			synchronized(traces){
+				histograms = traces.get(job);
+				if(histograms == null){
+					histograms = new GhprbHistogram[stages.length + 1];
+					for(int i = 0; i < histograms.length; i++){
+						histograms[i] = new GhprbHistogram();
+					}
+					traces.put(job, histograms);
+				}
+			}
+		}
+		long first = 0;
+		long previous = 0;
+		for(GhprbTraceAction.Stage stage : stages){
+			long time = trace.getTime(stage);
+			if(time == 0) continue;
+			if(previous == 0){
+				first = time;
+			}else{
+				histograms[stage.ordinal()].record(TimeUnit.MILLISECONDS.toNanos(time - previous));
+			}
+			previous = time;
+		}
+		if(first != 0 && previous != first){
+			histograms[stages.length].record(TimeUnit.MILLISECONDS.toNanos(previous - first));
+		}
+	}
+
+	public void recordBuild(Build build){
+		builds.incrementAndGet(build.ordinal());
+	}
+
+	public void recordSave(long start, long bytes){
+		saves.recordSince(start);
+		lastSaveBytes.set(bytes);
+	}
+
+	public long getGitHubCalls(){
+		long ret = 0;
+		for(GhprbHistogram histogram : calls){
+			ret += histogram.getCount();
+		}
+		return ret;
+	}
+
+	public long getGitHubErrors(){
+		long ret = 0;
+		for(int i = 0; i < callErrors.length(); i++){
+			ret += callErrors.get(i);
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the remaining rate limit of the configured credentials, -1 if unknown. Asks GitHub if no
+	 * call reported it recently.
+	 */
+	public int getRateLimitRemaining(){
+		if(System.currentTimeMillis() - rateLimitUpdated > RATE_LIMIT_REFRESH){
+			refreshRateLimit();
+		}
+		return rateLimitRemaining;
+	}
+
+	private void refreshRateLimit(){
+		GhprbCircuitBreaker breaker = GhprbCircuitBreaker.get();
+		if(!breaker.allowRequest()) return;
+		try {
+			// doesn't count against the rate limit
+			GHRateLimit limit = GhprbTrigger.getDscp().getGitHub().get().getRateLimit();
+			breaker.recordSuccess();
+			recordRateLimit(limit.remaining, limit.limit);
+		} catch (IOException ex) {
+			breaker.recordFailure(ex);
+			logger.log(Level.FINE, "Couldn't obtain the rate limit", ex);
+		}
+	}
+
+	public long getWebhooks(){
+		return webhooks.getCount();
+	}
+
+	public double getWebhookLatencyP50(){
+		return webhooks.getPercentile(50);
+	}
+
+	public double getWebhookLatencyP99(){
+		return webhooks.getPercentile(99);
+	}
+
+	public long getPollCycles(){
+		long ret = 0;
+		for(GhprbHistogram histogram : pollCycles.values()){
+			ret += histogram.getCount();
+		}
+		return ret;
+	}
+
+	/**
+	 * Returns the 99th percentile of poll cycle durations of the slowest repository.
+	 */
+	public double getPollCycleP99(){
+		double ret = 0;
+		for(GhprbHistogram histogram : pollCycles.values()){
+			ret = Math.max(ret, histogram.getPercentile(99));
+		}
+		return ret;
+	}
+
+	public long getBuildsTriggered(){
+		return builds.get(Build.TRIGGERED.ordinal());
+	}
+
+	public long getBuildsSuppressed(){
+		return builds.get(Build.REUSED.ordinal()) + builds.get(Build.SKIPPED_BY_PATHS.ordinal());
+	}
+
+	public long getSaves(){
+		return saves.getCount();
+	}
+
+	public double getSaveTimeP99(){
+		return saves.getPercentile(99);
+	}
+
+	public long getLastSaveBytes(){
+		return lastSaveBytes.get();
+	}
+
+	public int getPendingCommitStatuses(){
+		return GhprbCommitStatusPublisher.get().getPendingCount();
+	}
+
+	public String getJson(){
+		return toJSON().toString(2);
+	}
+
+	public JSONObject toJSON(){
+		JSONObject ret = new JSONObject();
+
+		JSONObject github = new JSONObject();
+		for(Call call : Call.values()){
+			JSONObject json = calls[call.ordinal()].toJSON();
+			json.put("errors", callErrors.get(call.ordinal()));
+			github.put(call.name(), json);
+		}
+		ret.put("github", github);
+
+		JSONObject limit = new JSONObject();
+		limit.put("remaining", getRateLimitRemaining());
+		limit.put("limit", rateLimit);
+		ret.put("rateLimit", limit);
+
+		JSONObject tokens = new JSONObject();
+		for(GhprbToken token : GhprbTrigger.getDscp().getGitHub().getTokens()){
+			tokens.put(token.getName(), token.toJSON());
+		}
+		ret.put("tokens", tokens);
+
+		JSONObject hooks = webhooks.toJSON();
+		hooks.put("errors", webhookErrors.get());
+		GhprbWebhookSpool spool = GhprbWebhookSpool.get();
+		hooks.put("spooled", spool.getSpooledCount());
+		hooks.put("pending", spool.getPendingCount());
+		hooks.put("retried", spool.getRetriedCount());
+		hooks.put("dropped", spool.getDroppedCount());
+		ret.put("webhooks", hooks);
+
+		JSONObject polls = new JSONObject();
+		for(Map.Entry<String,GhprbHistogram> e : pollCycles.entrySet()){
+			polls.put(e.getKey(), e.getValue().toJSON());
+		}
+		ret.put("pollCycles", polls);
+
+		JSONObject pulls = new JSONObject();
+		pulls.put("checked", pullsChecked.get());
+		pulls.put("skipped", pullsSkipped.get());
+		ret.put("pulls", pulls);
+
+		JSONObject triggered = new JSONObject();
+		for(Build build : Build.values()){
+			triggered.put(build.name(), builds.get(build.ordinal()));
+		}
+		ret.put("builds", triggered);
+
+		JSONObject jobTraces = new JSONObject();
+		for(Map.Entry<String,GhprbHistogram[]> e : traces.entrySet()){
+			JSONObject json = new JSONObject();
+			// latency of reaching the stage from the previous one
+			for(GhprbTraceAction.Stage stage : GhprbTraceAction.Stage.values()){
+				if(stage.ordinal() == 0) continue;
+				json.put(stage.name(), e.getValue()[stage.ordinal()].toJSON());
+			}
+			json.put("total", e.getValue()[GhprbTraceAction.Stage.values().length].toJSON());
+			jobTraces.put(e.getKey(), json);
+		}
+		ret.put("traces", jobTraces);
+
+		JSONObject save = saves.toJSON();
+		save.put("lastBytes", lastSaveBytes.get());
+		ret.put("save", save);
+
+		GhprbCommitStatusPublisher publisher = GhprbCommitStatusPublisher.get();
+		JSONObject statuses = new JSONObject();
+		statuses.put("pending", publisher.getPendingCount());
+		statuses.put("published", publisher.getPublishedCount());
+		statuses.put("failed", publisher.getFailedCount());
+		statuses.put("retried", publisher.getRetriedCount());
+		statuses.put("superseded", publisher.getSupersededCount());
+		statuses.put("redundant", publisher.getRedundantCount());
+		statuses.put("averageLatencyMs", publisher.getAverageLatency());
+		statuses.put("maxLatencyMs", publisher.getMaxLatency());
+		ret.put("commitStatuses", statuses);
+
+		return ret;
+	}
+
+	@Initializer(after = InitMilestone.PLUGINS_STARTED)
+	public static void registerMBean(){
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if(server.isRegistered(name)){
+				// left there by the previous instance of the plugin
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(metrics, name);
+		} catch (Exception ex) {
+			logger.log(Level.WARNING, "Couldn't register " + OBJECT_NAME, ex);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package org.jenkinsci.plugins.ghprb;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import java.io.IOException;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves {@link GhprbMetrics} as JSON, read-only.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+@Extension
+public class GhprbMetricsAction implements RootAction {
+	static final String URL = "ghprbmetrics";
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return null;
+	}
+
+	public String getUrlName() {
+		return URL;
+	}
+
+	public void doIndex(StaplerRequest req, StaplerResponse resp) throws IOException {
+		Jenkins.getInstance().checkPermission(Jenkins.READ);
+		resp.setContentType("application/json;charset=UTF-8");
+		resp.getWriter().write(GhprbMetrics.get().getJson());
+	}
+}
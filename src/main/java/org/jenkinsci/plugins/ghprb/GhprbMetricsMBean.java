@@ -0,0 +1,41 @@
+package org.jenkinsci.plugins.ghprb;
+
+/**
+ * JMX view of {@link GhprbMetrics}. Durations are in milliseconds.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public interface GhprbMetricsMBean {
+	long getGitHubCalls();
+
+	long getGitHubErrors();
+
+	int getRateLimitRemaining();
+
+	long getWebhooks();
+
+	double getWebhookLatencyP50();
+
+	double getWebhookLatencyP99();
+
+	long getPollCycles();
+
+	double getPollCycleP99();
+
+	long getBuildsTriggered();
+
+	long getBuildsSuppressed();
+
+	long getSaves();
+
+	double getSaveTimeP99();
+
+	long getLastSaveBytes();
+
+	int getPendingCommitStatuses();
+
+	/**
+	 * Returns all metrics as served by {@link GhprbMetricsAction}.
+	 */
+	String getJson();
+}
@@ -0,0 +1,94 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether a pull request touches files the job is interested in. Paths are matched
+ * against ant-like globs, one per line: {@code *} and {@code ?} don't cross directories,
+ * {@code **} does and a trailing {@code /} matches everything under the directory.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbPathFilter {
+	private final List<Pattern> includes;
+	private final List<Pattern> excludes;
+
+	private GhprbPathFilter(List<Pattern> includes, List<Pattern> excludes){
+		this.includes = includes;
+		this.excludes = excludes;
+	}
+
+	/**
+	 * Returns the filter for given newline separated globs, or null if there are none.
+	 */
+	public static GhprbPathFilter create(String includedRegions, String excludedRegions){
+		List<Pattern> includes = compile(includedRegions);
+		List<Pattern> excludes = compile(excludedRegions);
+		if(includes.isEmpty() && excludes.isEmpty()) return null;
+		return new GhprbPathFilter(includes, excludes);
+	}
+
+	/**
+	 * Returns true if any of the files is included (or there are no includes) and not excluded.
+	 */
+	public boolean isRelevant(Collection<String> files){
+		for(String file : files){
+			if(matches(includes, file, true) && !matches(excludes, file, false)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean matches(List<Pattern> patterns, String file, boolean ifEmpty){
+		if(patterns.isEmpty()) return ifEmpty;
+		for(Pattern p : patterns){
+			if(p.matcher(file).matches()) return true;
+		}
+		return false;
+	}
+
+	private static List<Pattern> compile(String globs){
+		List<Pattern> ret = new ArrayList<Pattern>();
+		if(globs == null) return ret;
+		for(String glob : globs.split("[\\r\\n]+")){
+			glob = glob.trim();
+			if(glob.isEmpty()) continue;
+			ret.add(toPattern(glob));
+		}
+		return ret;
+	}
+
+	static Pattern toPattern(String glob){
+		if(glob.startsWith("/")) glob = glob.substring(1);
+		if(glob.endsWith("/")) glob = glob + "**";
+
+		StringBuilder sb = new StringBuilder();
+		int i = 0;
+		while(i < glob.length()){
+			char c = glob.charAt(i);
+			if(glob.startsWith("**/", i)){
+				sb.append("(?:.*/)?");
+				i += 3;
+				continue;
+			}
+			if(glob.startsWith("**", i)){
+				sb.append(".*");
+				i += 2;
+				continue;
+			}
+			if(c == '*'){
+				sb.append("[^/]*");
+			}else if(c == '?'){
+				sb.append("[^/]");
+			}else{
+				sb.append(Pattern.quote(String.valueOf(c)));
+			}
+			i++;
+		}
+		return Pattern.compile(sb.toString());
+	}
+}
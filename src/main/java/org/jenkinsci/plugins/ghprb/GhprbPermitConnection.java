@@ -0,0 +1,257 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.kohsuke.github.HttpConnector;
+
+/**
+ * Connection of the github-api library holding a permit of {@link GhprbGitHubExecutor} for its host
+ * from its opening until the response arrives, or until it fails or is disconnected.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+class GhprbPermitConnection extends HttpURLConnection {
+
+	/**
+	 * Returns connector opening connections which take the permits of the host.
+	 */
+	static HttpConnector connector(final String host){
+		return new HttpConnector() {
+			public HttpURLConnection connect(URL url) throws IOException {
+				HttpURLConnection uc = (HttpURLConnection) url.openConnection();
+				return new GhprbPermitConnection(uc, GhprbGitHubExecutor.get().acquire(host));
+			}
+		};
+	}
+
+	private final HttpURLConnection uc;
+	private final Semaphore permits;
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	private GhprbPermitConnection(HttpURLConnection uc, Semaphore permits){
+		super(uc.getURL());
+		this.uc = uc;
+		this.permits = permits;
+	}
+
+	private void release(){
+		if(released.compareAndSet(false, true)){
+			permits.release();
+		}
+	}
+
+	// the response has arrived or the request failed
+	private IOException failed(IOException ex){
+		release();
+		return ex;
+	}
+
+	@Override
+	public void connect() throws IOException {
+		try{
+			uc.connect();
+		}catch(IOException ex){
+			throw failed(ex);
+		}
+	}
+
+	@Override
+	public void disconnect() {
+		release();
+		uc.disconnect();
+	}
+
+	@Override
+	public boolean usingProxy() {
+		return uc.usingProxy();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		try{
+			return uc.getOutputStream();
+		}catch(IOException ex){
+			throw failed(ex);
+		}
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		try{
+			return uc.getInputStream();
+		}finally{
+			release();
+		}
+	}
+
+	@Override
+	public InputStream getErrorStream() {
+		try{
+			return uc.getErrorStream();
+		}finally{
+			release();
+		}
+	}
+
+	@Override
+	public int getResponseCode() throws IOException {
+		try{
+			return uc.getResponseCode();
+		}finally{
+			release();
+		}
+	}
+
+	@Override
+	public String getResponseMessage() throws IOException {
+		try{
+			return uc.getResponseMessage();
+		}finally{
+			release();
+		}
+	}
+
+	@Override
+	public String getHeaderField(String name) {
+		try{
+			return uc.getHeaderField(name);
+		}finally{
+			release();
+		}
+	}
+
+	@Override
+	public String getHeaderField(int n) {
+		try{
+			return uc.getHeaderField(n);
+		}finally{
+			release();
+		}
+	}
+
+	@Override
+	public String getHeaderFieldKey(int n) {
+		try{
+			return uc.getHeaderFieldKey(n);
+		}finally{
+			release();
+		}
+	}
+
+	@Override
+	public Map<String,List<String>> getHeaderFields() {
+		try{
+			return uc.getHeaderFields();
+		}finally{
+			release();
+		}
+	}
+
+	@Override
+	public void setRequestMethod(String method) throws ProtocolException {
+		uc.setRequestMethod(method);
+	}
+
+	@Override
+	public String getRequestMethod() {
+		return uc.getRequestMethod();
+	}
+
+	@Override
+	public void setRequestProperty(String key, String value) {
+		uc.setRequestProperty(key, value);
+	}
+
+	@Override
+	public void addRequestProperty(String key, String value) {
+		uc.addRequestProperty(key, value);
+	}
+
+	@Override
+	public String getRequestProperty(String key) {
+		return uc.getRequestProperty(key);
+	}
+
+	@Override
+	public Map<String,List<String>> getRequestProperties() {
+		return uc.getRequestProperties();
+	}
+
+	@Override
+	public void setDoOutput(boolean doOutput) {
+		uc.setDoOutput(doOutput);
+	}
+
+	@Override
+	public boolean getDoOutput() {
+		return uc.getDoOutput();
+	}
+
+	@Override
+	public void setDoInput(boolean doInput) {
+		uc.setDoInput(doInput);
+	}
+
+	@Override
+	public boolean getDoInput() {
+		return uc.getDoInput();
+	}
+
+	@Override
+	public void setUseCaches(boolean useCaches) {
+		uc.setUseCaches(useCaches);
+	}
+
+	@Override
+	public void setConnectTimeout(int timeout) {
+		uc.setConnectTimeout(timeout);
+	}
+
+	@Override
+	public int getConnectTimeout() {
+		return uc.getConnectTimeout();
+	}
+
+	@Override
+	public void setReadTimeout(int timeout) {
+		uc.setReadTimeout(timeout);
+	}
+
+	@Override
+	public int getReadTimeout() {
+		return uc.getReadTimeout();
+	}
+
+	@Override
+	public void setInstanceFollowRedirects(boolean followRedirects) {
+		uc.setInstanceFollowRedirects(followRedirects);
+	}
+
+	@Override
+	public boolean getInstanceFollowRedirects() {
+		return uc.getInstanceFollowRedirects();
+	}
+
+	@Override
+	public void setChunkedStreamingMode(int chunklen) {
+		uc.setChunkedStreamingMode(chunklen);
+	}
+
+	@Override
+	public void setFixedLengthStreamingMode(int contentLength) {
+		uc.setFixedLengthStreamingMode(contentLength);
+	}
+
+	@Override
+	public URL getURL() {
+		return uc.getURL();
+	}
+}
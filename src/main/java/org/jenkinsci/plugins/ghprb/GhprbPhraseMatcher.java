@@ -0,0 +1,374 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.regex.Pattern;
+
+/**
+ * Matches comments against the phrases of all jobs built from one repository at once. Every job used
+ * to match each comment against its own phrases; now the comment is scanned once and the result is
+ * shared by the jobs, the last one is remembered as all jobs check the same comment one after another.
+ *
+ * Literal phrases (trigger phrases) are found by a single Aho-Corasick pass. Regular expressions (ok to
+ * test, force rebuild) must match the whole comment as before. On a comment of one line their leading
+ * and trailing {@code .*} are replaced by an unanchored find, which means the same there and doesn't
+ * backtrack over a long comment; {@code .*} stops at the first line terminator, so on other comments
+ * the expression is matched as it is.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbPhraseMatcher {
+	// repo-name : matcher
+	private static final Map<String,GhprbPhraseMatcher> matchers = new HashMap<String,GhprbPhraseMatcher>();
+
+	/**
+	 * Returns the matcher shared by the jobs of the repository, it's dropped when the last of them unregisters.
+	 */
+	public static GhprbPhraseMatcher get(String reponame){
+		synchronized(matchers){
+			GhprbPhraseMatcher matcher = matchers.get(reponame);
+			if(matcher == null){
+				matcher = new GhprbPhraseMatcher(reponame);
+				matchers.put(reponame, matcher);
+			}
+			return matcher;
+		}
+	}
+
+	// null if the matcher isn't shared
+	private final String reponame;
+	// phrase : number of jobs using it
+	private final Map<String,Integer> literals = new LinkedHashMap<String,Integer>();
+	private final Map<String,Integer> regexes = new LinkedHashMap<String,Integer>();
+	private volatile Phrases phrases;
+
+	GhprbPhraseMatcher(){
+		this(null);
+	}
+
+	private GhprbPhraseMatcher(String reponame){
+		this.reponame = reponame;
+	}
+
+	/**
+	 * Adds the phrases of a job, an empty trigger phrase is ignored.
+	 * @throws java.util.regex.PatternSyntaxException if a regular expression is invalid
+	 */
+	public synchronized void register(String okToTestPhrase, String forceRebuildPhrase, String triggerPhrase){
+		Pattern.compile(okToTestPhrase);
+		Pattern.compile(forceRebuildPhrase);
+		add(regexes, okToTestPhrase);
+		add(regexes, forceRebuildPhrase);
+		if(triggerPhrase != null && !triggerPhrase.isEmpty()){
+			add(literals, triggerPhrase);
+		}
+		phrases = null;
+	}
+
+	public synchronized void unregister(String okToTestPhrase, String forceRebuildPhrase, String triggerPhrase){
+		remove(regexes, okToTestPhrase);
+		remove(regexes, forceRebuildPhrase);
+		if(triggerPhrase != null && !triggerPhrase.isEmpty()){
+			remove(literals, triggerPhrase);
+		}
+		phrases = null;
+		if(reponame != null && literals.isEmpty() && regexes.isEmpty()){
+			synchronized(matchers){
+				if(matchers.get(reponame) == this) matchers.remove(reponame);
+			}
+		}
+	}
+
+	static boolean isShared(String reponame){
+		synchronized(matchers){
+			return matchers.containsKey(reponame);
+		}
+	}
+
+	private static void add(Map<String,Integer> phrases, String phrase){
+		Integer count = phrases.get(phrase);
+		phrases.put(phrase, count == null ? 1 : count + 1);
+	}
+
+	private static void remove(Map<String,Integer> phrases, String phrase){
+		Integer count = phrases.get(phrase);
+		if(count == null) return;
+		if(count == 1){
+			phrases.remove(phrase);
+		}else{
+			phrases.put(phrase, count - 1);
+		}
+	}
+
+	/**
+	 * Returns which of the registered phrases the comment contains.
+	 */
+	public Match match(String comment){
+		Phrases p = getPhrases();
+		Match last = p.last;
+		if(last != null && (last.comment == comment || last.comment.equals(comment))){
+			return last;
+		}
+		Match match = p.match(comment);
+		p.last = match;
+		return match;
+	}
+
+	private Phrases getPhrases(){
+		Phrases p = phrases;
+		if(p == null){
+			synchronized(this){
+				p = phrases;
+				if(p == null){
+					p = new Phrases(new ArrayList<String>(literals.keySet()), new ArrayList<String>(regexes.keySet()));
+					phrases = p;
+				}
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Phrases found in one comment.
+	 */
+	public static class Match {
+		private final String comment;
+		private final Phrases phrases;
+		private final boolean[] literals;
+		private final boolean[] regexes;
+
+		private Match(String comment, Phrases phrases, boolean[] literals, boolean[] regexes){
+			this.comment = comment;
+			this.phrases = phrases;
+			this.literals = literals;
+			this.regexes = regexes;
+		}
+
+		/**
+		 * Returns true if the comment contains the registered literal phrase.
+		 */
+		public boolean contains(String literal){
+			Integer i = phrases.literalIndexes.get(literal);
+			return i != null && literals[i];
+		}
+
+		/**
+		 * Returns true if the comment matches the registered regular expression.
+		 */
+		public boolean matches(String regex){
+			Integer i = phrases.regexIndexes.get(regex);
+			return i != null && regexes[i];
+		}
+	}
+
+	// compiled snapshot of the registered phrases
+	private static class Phrases {
+		private final Map<String,Integer> literalIndexes = new HashMap<String,Integer>();
+		private final Map<String,Integer> regexIndexes = new HashMap<String,Integer>();
+		private final AhoCorasick automaton;
+		private final Pattern[] patterns;
+		// the patterns for find() on comments of one line, null where they can't be rewritten
+		private final Pattern[] singleLine;
+		private volatile Match last;
+
+		private Phrases(List<String> literals, List<String> regexes){
+			for(int i = 0; i < literals.size(); i++){
+				literalIndexes.put(literals.get(i), i);
+			}
+			automaton = new AhoCorasick(literals);
+			patterns = new Pattern[regexes.size()];
+			singleLine = new Pattern[regexes.size()];
+			for(int i = 0; i < regexes.size(); i++){
+				regexIndexes.put(regexes.get(i), i);
+				patterns[i] = Pattern.compile(regexes.get(i));
+				singleLine[i] = compileSingleLine(regexes.get(i));
+			}
+		}
+
+		private Match match(String comment){
+			boolean[] foundLiterals = automaton.match(comment);
+			boolean[] foundRegexes = new boolean[patterns.length];
+			boolean oneLine = !hasLineTerminator(comment);
+			for(int i = 0; i < patterns.length; i++){
+				if(oneLine && singleLine[i] != null){
+					foundRegexes[i] = singleLine[i].matcher(comment).find();
+				}else{
+					foundRegexes[i] = patterns[i].matcher(comment).matches();
+				}
+			}
+			return new Match(comment, this, foundLiterals, foundRegexes);
+		}
+	}
+
+	/**
+	 * Compiles the regular expression to be used by {@code find()} on a text without line terminators
+	 * with the meaning it has for {@code matches()}. Returns null if it has neither a leading nor a
+	 * trailing {@code .*} to drop, or they can't be dropped: a top-level {@code |} would then split
+	 * them from the alternatives.
+	 */
+	static Pattern compileSingleLine(String regex){
+		// .*? and .*+ are other quantifiers, quoting hides what the regex ends with
+		boolean leading = regex.startsWith(".*") && !regex.startsWith(".*?") && !regex.startsWith(".*+");
+		boolean trailing = regex.length() >= (leading ? 4 : 2) && regex.endsWith(".*") && !isEscaped(regex, regex.length() - 2);
+		if(!leading && !trailing) return null;
+		if(regex.contains("\\Q") || hasTopLevelAlternation(regex)) return null;
+		String core = regex.substring(leading ? 2 : 0, trailing ? regex.length() - 2 : regex.length());
+		return Pattern.compile((leading ? "" : "\\A") + "(?:" + core + ")" + (trailing ? "" : "\\z"));
+	}
+
+	// true if the regex has a | outside of groups and character classes
+	private static boolean hasTopLevelAlternation(String regex){
+		int depth = 0;
+		boolean inClass = false;
+		for(int i = 0; i < regex.length(); i++){
+			char c = regex.charAt(i);
+			if(c == '\\'){
+				i++;
+			}else if(inClass){
+				if(c == ']') inClass = false;
+			}else if(c == '['){
+				inClass = true;
+				// a ] right after [ or [^ is a literal
+				if(i + 1 < regex.length() && regex.charAt(i + 1) == '^') i++;
+				if(i + 1 < regex.length() && regex.charAt(i + 1) == ']') i++;
+			}else if(c == '('){
+				depth++;
+			}else if(c == ')'){
+				depth--;
+			}else if(c == '|' && depth == 0){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// the characters . doesn't match without DOTALL
+	private static boolean hasLineTerminator(String s){
+		for(int i = 0; i < s.length(); i++){
+			char c = s.charAt(i);
+			if(c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') return true;
+		}
+		return false;
+	}
+
+	// true if the character at index is escaped by an odd number of backslashes
+	private static boolean isEscaped(String s, int index){
+		int backslashes = 0;
+		for(int i = index - 1; i >= 0 && s.charAt(i) == '\\'; i--){
+			backslashes++;
+		}
+		return backslashes % 2 == 1;
+	}
+
+	/**
+	 * Aho-Corasick automaton finding which of the phrases occur in a text in one pass.
+	 */
+	static class AhoCorasick {
+		private static final int[] NONE = new int[0];
+		private final Node root = new Node();
+		private final int count;
+
+		AhoCorasick(List<String> phrases){
+			count = phrases.size();
+			for(int i = 0; i < phrases.size(); i++){
+				Node node = root;
+				for(char c : phrases.get(i).toCharArray()){
+					Node next = node.get(c);
+					if(next == null){
+						next = node.add(c);
+					}
+					node = next;
+				}
+				node.outputs = append(node.outputs, i);
+			}
+			// breadth first, so the fail link of each node is complete before its children
+			Queue<Node> queue = new ArrayDeque<Node>();
+			for(Node child : root.next){
+				child.fail = root;
+				queue.add(child);
+			}
+			while(!queue.isEmpty()){
+				Node node = queue.poll();
+				for(int i = 0; i < node.chars.length; i++){
+					char c = node.chars[i];
+					Node child = node.next[i];
+					Node fail = node.fail;
+					while(fail != null && fail.get(c) == null){
+						fail = fail.fail;
+					}
+					child.fail = fail == null ? root : fail.get(c);
+					for(int output : child.fail.outputs){
+						child.outputs = append(child.outputs, output);
+					}
+					queue.add(child);
+				}
+			}
+		}
+
+		/**
+		 * Returns which phrases the text contains, indexed as given to the constructor.
+		 */
+		boolean[] match(String text){
+			boolean[] found = new boolean[count];
+			int remaining = count;
+			Node state = root;
+			for(int i = 0; i < text.length() && remaining > 0; i++){
+				char c = text.charAt(i);
+				Node next = state.get(c);
+				while(next == null && state != root){
+					state = state.fail;
+					next = state.get(c);
+				}
+				state = next == null ? root : next;
+				for(int output : state.outputs){
+					if(!found[output]){
+						found[output] = true;
+						remaining--;
+					}
+				}
+			}
+			return found;
+		}
+
+		private static int[] append(int[] array, int value){
+			int[] ret = Arrays.copyOf(array, array.length + 1);
+			ret[array.length] = value;
+			return ret;
+		}
+
+		private static class Node {
+			// sorted transitions
+			private char[] chars = new char[0];
+			private Node[] next = new Node[0];
+			private Node fail;
+			private int[] outputs = NONE;
+
+			private Node get(char c){
+				int i = Arrays.binarySearch(chars, c);
+				return i >= 0 ? next[i] : null;
+			}
+
+			private Node add(char c){
+				int i = -(Arrays.binarySearch(chars, c) + 1);
+				char[] newChars = new char[chars.length + 1];
+				Node[] newNext = new Node[next.length + 1];
+				System.arraycopy(chars, 0, newChars, 0, i);
+				System.arraycopy(next, 0, newNext, 0, i);
+				System.arraycopy(chars, i, newChars, i + 1, chars.length - i);
+				System.arraycopy(next, i, newNext, i + 1, next.length - i);
+				Node node = new Node();
+				newChars[i] = c;
+				newNext[i] = node;
+				chars = newChars;
+				next = newNext;
+				return node;
+			}
+		}
+	}
+}
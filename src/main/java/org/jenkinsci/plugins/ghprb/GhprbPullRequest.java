@@ -1,7 +1,9 @@
 package org.jenkinsci.plugins.ghprb;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.kohsuke.github.GHCommitState;
@@ -14,11 +16,15 @@ import org.kohsuke.github.GHUser;
  */
 public class GhprbPullRequest{
 	private static final Logger logger = Logger.getLogger(GhprbPullRequest.class.getName());
+	// poll cycles, the longest interval between checks of a pull request nothing happens in
+	private static final int MAX_POLL_INTERVAL = 32;
 	private final int id;
 	private String title;
-	private final GHUser author;
-	private Date updated;
+	private String authorLogin;
+	// ms since epoch
+	private long updatedAt;
 	private String head;
+	private String baseSha;
 	private boolean mergeable;
 	private String reponame;
 	private String target;
@@ -27,19 +33,34 @@ public class GhprbPullRequest{
 	private boolean shouldRun = false;
 	private boolean accepted = false;
 	private boolean triggered = false;
+	private boolean forceRebuild = false;
+	// the build waits in GhprbBuilds until the queue has room, which doesn't survive a restart of the trigger
+	private boolean deferred = false;
+	private long summaryCommentId = 0;
 	@Deprecated private transient boolean askedForApproval; // TODO: remove
+	// replaced by authorLogin and updatedAt, only read from configurations saved before
+	@Deprecated private GHUser author;
+	@Deprecated private Date updated;
 
 	private transient Ghprb ml;
 	private transient GhprbRepository repo;
-
-	GhprbPullRequest(GHPullRequest pr, Ghprb helper, GhprbRepository repo) {
+	// poll cycles until the next check and the interval it was set from, see isPollDue
+	private transient int skipCycles;
+	private transient int pollInterval;
+	// a build is creating the summary comment, text of a later build to put in it once it exists
+	private transient boolean creatingSummary;
+	private transient String pendingSummary;
+
+	GhprbPullRequest(Remote remote, Ghprb helper, GhprbRepository repo) {
+		GHPullRequest pr = remote.pr;
 		id = pr.getNumber();
-		updated = pr.getUpdatedAt();
+		updatedAt = pr.getUpdatedAt().getTime();
 		head = pr.getHead().getSha();
 		title = pr.getTitle();
-		author = pr.getUser();
-		reponame = repo.getName();
-		target = pr.getBase().getRef();
+		authorLogin = intern(pr.getUser().getLogin());
+		reponame = intern(repo.getName());
+		target = intern(pr.getBase().getRef());
+		baseSha = pr.getBase().getSha();
 
 		this.ml = helper;
 		this.repo = repo;
@@ -47,67 +68,180 @@ public class GhprbPullRequest{
 		accepted = true;
 		shouldRun = true;
 
-		obtainAuthorEmail(pr);
-		logger.log(Level.INFO, "Created pull request #{0} on {1} by {2} ({3}) updated at: {4} SHA: {5}", new Object[]{id, reponame, author.getLogin(), authorEmail, updated, head});
+		authorEmail = intern(remote.authorEmail);
+		logger.log(Level.INFO, "Created pull request #{0} on {1} by {2} ({3}) updated at: {4} SHA: {5}", new Object[]{id, reponame, authorLogin, authorEmail, getUpdated(), head});
+	}
+
+	private Object readResolve(){
+		if(author != null){
+			authorLogin = author.getLogin();
+			author = null;
+		}
+		if(updated != null){
+			updatedAt = updated.getTime();
+			updated = null;
+		}
+		// the same few repositories, branches and authors repeat in all pull requests
+		authorLogin = intern(authorLogin);
+		reponame = intern(reponame);
+		target = intern(target);
+		authorEmail = intern(authorEmail);
+		return this;
+	}
+
+	private static String intern(String s){
+		return s == null ? null : s.intern();
 	}
 
 	public void init(Ghprb helper, GhprbRepository repo) {
 		this.ml = helper;
 		this.repo = repo;
-		if(reponame == null) reponame = repo.getName(); // If this instance was created before v1.8, it can be null.
+		if(reponame == null) reponame = intern(repo.getName()); // If this instance was created before v1.8, it can be null.
+		if(deferred){
+			// the deferred build was lost with the previous trigger, build again on the next check
+			deferred = false;
+			shouldRun = true;
+			triggered = true;
+		}
+	}
+
+	void setDeferred(boolean deferred) {
+		this.deferred = deferred;
+	}
+
+	/**
+	 * Returns true if the pull request should be checked in this poll cycle. One which wasn't updated
+	 * since the last check is checked again after twice as many cycles as the last time, up to
+	 * {@link #MAX_POLL_INTERVAL}, so polling follows the pull requests being worked on.
+	 */
+	boolean isPollDue(GHPullRequest pr){
+		if(shouldRun || isUpdated(pr)){
+			resetPolling();
+			return true;
+		}
+		if(skipCycles > 0){
+			skipCycles--;
+			return false;
+		}
+		pollInterval = pollInterval == 0 ? 1 : Math.min(pollInterval * 2, MAX_POLL_INTERVAL);
+		skipCycles = pollInterval;
+		return true;
+	}
+
+	/**
+	 * Makes the pull request checked in each poll cycle again, after something happened to it.
+	 */
+	void resetPolling(){
+		skipCycles = 0;
+		pollInterval = 0;
+	}
+
+	/**
+	 * What a check of the pull request needs from GitHub. It is read before the lock of the pull request
+	 * is taken, so the lock is held only while the state changes and not during the requests.
+	 */
+	static class Remote {
+		private final GHPullRequest pr;
+		private final boolean mergeable;
+		// comments to check, null if they couldn't be read
+		private final List<GHIssueComment> comments;
+		private final String authorEmail;
+
+		private Remote(GHPullRequest pr, boolean mergeable, List<GHIssueComment> comments, String authorEmail){
+			this.pr = pr;
+			this.mergeable = mergeable;
+			this.comments = comments;
+			this.authorEmail = authorEmail;
+		}
+	}
+
+	/**
+	 * Reads the state needed by {@link #check(Remote)} or by the constructor if {@code pull} is null.
+	 * Comments are read only if the pull request was updated since {@code pull} was checked.
+	 */
+	static Remote read(GHPullRequest pr, GhprbRepository repo, GhprbPullRequest pull){
+		List<GHIssueComment> comments = Collections.emptyList();
+		if(pull != null && pull.isUpdated(pr)){
+			comments = readComments(pr);
+		}
+		// If this instance was create before authorEmail was introduced (before v1.10), it can be null.
+		String authorEmail = pull == null || pull.authorEmail == null ? readAuthorEmail(pr) : null;
+		return new Remote(pr, readMergeable(pr, repo), comments, authorEmail);
+	}
+
+	/**
+	 * Reads the mergeable state needed by {@link #check(GHIssueComment, Remote)} and {@link #checkTargetMoved(Remote)}.
+	 */
+	static Remote readMergeable(GHPullRequest pr, GhprbRepository repo){
+		return new Remote(pr, readMergeable(pr, repo), Collections.<GHIssueComment>emptyList(), null);
 	}
 
-	public void check(GHPullRequest pr){
-		if(target == null) target = pr.getBase().getRef(); // If this instance was created before target was introduced (before v1.8), it can be null.
+	public void check(Remote remote){
+		GHPullRequest pr = remote.pr;
+		// the pull request can be retargeted to another branch
+		target = intern(pr.getBase().getRef());
 		if(authorEmail == null) {
-			// If this instance was create before authorEmail was introduced (before v1.10), it can be null.
-			obtainAuthorEmail(pr); 
+			authorEmail = intern(remote.authorEmail);
 		}
 
 		if(isUpdated(pr)){
-			logger.log(Level.INFO, "Pull request builder: pr #{0} was updated on {1} at {2} by {3} ({4})", new Object[]{id, reponame, updated, author, authorEmail});
+			logger.log(Level.INFO, "Pull request builder: pr #{0} was updated on {1} at {2} by {3} ({4})", new Object[]{id, reponame, getUpdated(), authorLogin, authorEmail});
 
 			// the title could have been updated since the original PR was opened
 			title = pr.getTitle();
-			int commentsChecked = checkComments(pr);
+			int commentsChecked = checkComments(remote.comments);
 			boolean newCommit = checkCommit(pr.getHead().getSha());
 
 			if(!newCommit && commentsChecked == 0){
 				logger.log(Level.INFO, "Pull request was updated on repo {0} but there aren't any new comments nor commits - that may mean that commit status was updated.", reponame);
 			}
-			updated = pr.getUpdatedAt();
+			updatedAt = Math.max(updatedAt, pr.getUpdatedAt().getTime());
 		}else{
-			logger.log(Level.INFO, "Pull request builder: pr #{0} was NOT updated on {1} at {2} by {3}", new Object[]{id, reponame, updated, author});
+			logger.log(Level.INFO, "Pull request builder: pr #{0} was NOT updated on {1} at {2} by {3}", new Object[]{id, reponame, getUpdated(), authorLogin});
 		}
 
-		checkMergeable(pr);
+		baseSha = pr.getBase().getSha();
+		mergeable = remote.mergeable;
 		tryBuild();
 	}
 
-	public void check(GHIssueComment comment) {
+	/**
+	 * Checks a new comment, {@code remote} is null if the pull request couldn't be read.
+	 */
+	public void check(GHIssueComment comment, Remote remote) {
+		resetPolling();
 		try {
 			checkComment(comment);
-			updated = comment.getUpdatedAt();
+			updatedAt = Math.max(updatedAt, comment.getUpdatedAt().getTime());
 		} catch (IOException ex) {
 			logger.log(Level.SEVERE, "Couldn't check comment #" + comment.getId(), ex);
 			return;
 		}
-		GHPullRequest pr = null;
-		try{
-			pr = repo.getPullRequest(id);
-		} catch (IOException e){
-			logger.log(Level.SEVERE, "Couldn't get GHPullRequest for checking mergeable state");
+
+		if (remote != null){
+			baseSha = remote.pr.getBase().getSha();
+			mergeable = remote.mergeable;
 		}
+		tryBuild();
+	}
 
-		if (pr != null){
-			checkMergeable(pr);
+	/**
+	 * Called when the target branch moved, rebuilds the merge of this pull request if it is still mergeable.
+	 */
+	public void checkTargetMoved(Remote remote){
+		resetPolling();
+		baseSha = remote.pr.getBase().getSha();
+		mergeable = remote.mergeable;
+		if(accepted && mergeable){
+			logger.log(Level.INFO, "Target branch {0} of pr #{1} on {2} moved to {3}", new Object[]{target, id, reponame, baseSha});
+			shouldRun = true;
 		}
 		tryBuild();
 	}
 
 	private boolean isUpdated(GHPullRequest pr){
 		boolean ret = false;
-		ret = ret || updated.compareTo(pr.getUpdatedAt()) < 0;
+		ret = ret || updatedAt < pr.getUpdatedAt().getTime();
 		ret = ret || !pr.getHead().getSha().equals(head);
 
 		return ret;
@@ -125,11 +259,20 @@ public class GhprbPullRequest{
 	}
 
 	private void build(){
+		GhprbTraceAction.markCurrent(GhprbTraceAction.Stage.CHECKED);
+		if(ml.getBuilds().skipByPathFilter(this)){
+			return;
+		}
+		if(!forceRebuild && ml.getBuilds().reuseResult(this)){
+			return;
+		}
+		forceRebuild = false;
+
 		String message = ml.getBuilds().build(this);
 
 		repo.createCommitStatus(head, GHCommitState.PENDING, null, message,id);
 
-		logger.log(Level.INFO, "Build scheduled with message: {0}, for repository: {1} pr: {2}, author: {3}, title: {4}",new Object[]{message,reponame,id,author.getLogin(),title});
+		logger.log(Level.INFO, "Build scheduled with message: {0}, for repository: {1} pr: {2}, author: {3}, title: {4}",new Object[]{message,reponame,id,authorLogin,title});
 	}
 
 	// returns false if no new commit
@@ -157,28 +300,46 @@ public class GhprbPullRequest{
 			accepted = true;
 			shouldRun = true;
 		}
+
+		// force rebuild, even if the same commits were already built
+		if(accepted && ml.isForceRebuildPhrase(body)){
+			shouldRun = true;
+			forceRebuild = true;
+		}
+
+		// trigger phrase
+		if(accepted && ml.isTriggerPhrase(body)){
+			triggered = true;
+			shouldRun = true;
+		}
 	}
 
-	private int checkComments(GHPullRequest pr) {
+	private int checkComments(List<GHIssueComment> comments) {
+		if (comments == null) return 0;
 		int count = 0;
-		try {
-			for (GHIssueComment comment : pr.getComments()) {
-				if (updated.compareTo(comment.getUpdatedAt()) < 0) {
-					count++;
-					try {
-						checkComment(comment);
-					} catch (IOException ex) {
-						logger.log(Level.SEVERE, "Couldn't check comment #" + comment.getId(), ex);
-					}
+		for (GHIssueComment comment : comments) {
+			if (updatedAt < comment.getUpdatedAt().getTime()) {
+				count++;
+				try {
+					checkComment(comment);
+				} catch (IOException ex) {
+					logger.log(Level.SEVERE, "Couldn't check comment #" + comment.getId(), ex);
 				}
 			}
+		}
+		return count;
+	}
+
+	private static List<GHIssueComment> readComments(GHPullRequest pr) {
+		try {
+			return pr.getComments();
 		} catch (IOException e) {
 			logger.log(Level.SEVERE, "Couldn't obtain comments.", e);
+			return null;
 		}
-		return count;
 	}
 
-	private void checkMergeable(GHPullRequest pr) {
+	private static boolean readMergeable(GHPullRequest pr, GhprbRepository repo) {
 		try {
 			int r=5;
 			while(pr.getMergeable() == null && r-->0){
@@ -187,23 +348,24 @@ public class GhprbPullRequest{
 				} catch (InterruptedException ex) {
 					break;
 				}
-				pr = repo.getPullRequest(id);
+				pr = repo.getPullRequest(pr.getNumber());
 			}
-			mergeable = pr.getMergeable() != null && pr.getMergeable();
+			return pr.getMergeable() != null && pr.getMergeable();
 		} catch (IOException e) {
-			mergeable = false;
 			logger.log(Level.SEVERE, "Couldn't obtain mergeable status.", e);
+			return false;
 		}
 	}
 
-	private void obtainAuthorEmail(GHPullRequest pr) {
+	private static String readAuthorEmail(GHPullRequest pr) {
 		try {
-			authorEmail = pr.getUser().getEmail();
+			return pr.getUser().getEmail();
 		}catch (NullPointerException e) {
 			logger.log(Level.INFO, "Email can't be loaded for:"+pr.getUser().getLogin(), e);
 		}catch (Exception e) {
 			logger.log(Level.WARNING, "Couldn't obtain author email.", e);
 		}
+		return null;
 	}
 
 	@Override
@@ -229,14 +391,74 @@ public class GhprbPullRequest{
 		return head;
 	}
 
+	/**
+	 * Returns the SHA of the target branch tip seen when the pull request was last checked.
+	 */
+	public String getBaseSha() {
+		return baseSha;
+	}
+
 	public boolean isMergeable() {
 		return mergeable;
 	}
 
+	public Date getUpdated() {
+		return new Date(updatedAt);
+	}
+
+	/**
+	 * Returns when the pull request was last updated in ms since epoch.
+	 */
+	public long getUpdatedTime() {
+		return updatedAt;
+	}
+
+	public String getAuthorLogin() {
+		return authorLogin;
+	}
+
 	public String getTarget(){
 		return target;
 	}
 	
+	/**
+	 * Returns id of the comment with build results which is edited by subsequent builds, 0 if there is none yet.
+	 */
+	public long getSummaryCommentId() {
+		return summaryCommentId;
+	}
+
+	void setSummaryCommentId(long summaryCommentId) {
+		this.summaryCommentId = summaryCommentId;
+	}
+
+	/**
+	 * Reserves creation of the summary comment, returns false if another build is creating it; the
+	 * text is then left for that build to put in the comment. Requires the lock of the pull request.
+	 */
+	boolean reserveSummaryComment(String comment) {
+		if(creatingSummary){
+			pendingSummary = comment;
+			return false;
+		}
+		creatingSummary = true;
+		return true;
+	}
+
+	/**
+	 * Ends creation of the summary comment, returns text left meanwhile by other builds or null.
+	 * Requires the lock of the pull request.
+	 */
+	String createdSummaryComment(long summaryCommentId) {
+		if(summaryCommentId > 0){
+			this.summaryCommentId = summaryCommentId;
+		}
+		creatingSummary = false;
+		String pending = pendingSummary;
+		pendingSummary = null;
+		return pending;
+	}
+
 	public String getAuthorEmail() {
 		return authorEmail;
 	}
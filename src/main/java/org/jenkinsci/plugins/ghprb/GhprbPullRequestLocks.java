@@ -0,0 +1,37 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks ordering all state transitions of one pull request. A pull request can be checked
+ * concurrently by the cron trigger and by hooks on request threads; holding its lock while checking
+ * makes them see each other's changes of head, triggers etc. The state from GitHub is read before the
+ * lock is taken, so it is held only for the in-memory transition. Pull requests are spread over a fixed
+ * number of locks, so different pull requests are mostly checked in parallel without a global lock.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbPullRequestLocks {
+	private static final int STRIPES = 256; // power of two
+	private static final Lock[] locks = new Lock[STRIPES];
+
+	static {
+		for(int i = 0; i < STRIPES; i++){
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	private GhprbPullRequestLocks(){}
+
+	/**
+	 * Returns the lock of the pull request number {@code id} in repository {@code reponame}.
+	 */
+	public static Lock get(String reponame, int id){
+		int hash = 31 * reponame.hashCode() + id;
+		// spread the bits, consecutive pull request numbers are the common case
+		hash ^= (hash >>> 20) ^ (hash >>> 12);
+		hash ^= (hash >>> 7) ^ (hash >>> 4);
+		return locks[hash & (STRIPES - 1)];
+	}
+}
@@ -0,0 +1,157 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Pull requests of a job by their number. The pull requests are kept in a single array sorted by
+ * number, the keys are taken from them, so there are no boxed keys nor hash entries. Lookups are binary
+ * searches without locking; writes copy the array, which is fine as pull requests are opened and closed
+ * far less often than looked up. Iterators see the pull requests as they were when they were created.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbPullRequestMap extends AbstractMap<Integer,GhprbPullRequest> {
+	private static final GhprbPullRequest[] EMPTY = new GhprbPullRequest[0];
+
+	private volatile GhprbPullRequest[] pulls = EMPTY;
+
+	public GhprbPullRequestMap(){
+	}
+
+	public GhprbPullRequestMap(Map<Integer,GhprbPullRequest> pulls){
+		putAll(pulls);
+	}
+
+	private static int indexOf(GhprbPullRequest[] pulls, int id){
+		int low = 0;
+		int high = pulls.length - 1;
+		while(low <= high){
+			int mid = (low + high) >>> 1;
+			int midId = pulls[mid].getId();
+			if(midId < id){
+				low = mid + 1;
+			}else if(midId > id){
+				high = mid - 1;
+			}else{
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	public GhprbPullRequest get(int id){
+		GhprbPullRequest[] pulls = this.pulls;
+		int i = indexOf(pulls, id);
+		return i >= 0 ? pulls[i] : null;
+	}
+
+	@Override
+	public GhprbPullRequest get(Object key){
+		return key instanceof Integer ? get(((Integer) key).intValue()) : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key){
+		return get(key) != null;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the key isn't the number of the pull request
+	 */
+	@Override
+	public synchronized GhprbPullRequest put(Integer key, GhprbPullRequest pull){
+		if(key.intValue() != pull.getId()){
+			throw new IllegalArgumentException("Pull request #" + pull.getId() + " put as #" + key);
+		}
+		GhprbPullRequest[] pulls = this.pulls;
+		int i = indexOf(pulls, pull.getId());
+		if(i >= 0){
+			GhprbPullRequest[] ret = pulls.clone();
+			ret[i] = pull;
+			this.pulls = ret;
+			return pulls[i];
+		}
+		i = -(i + 1);
+		GhprbPullRequest[] ret = new GhprbPullRequest[pulls.length + 1];
+		System.arraycopy(pulls, 0, ret, 0, i);
+		ret[i] = pull;
+		System.arraycopy(pulls, i, ret, i + 1, pulls.length - i);
+		this.pulls = ret;
+		return null;
+	}
+
+	@Override
+	public synchronized GhprbPullRequest remove(Object key){
+		if(!(key instanceof Integer)) return null;
+		GhprbPullRequest[] pulls = this.pulls;
+		int i = indexOf(pulls, (Integer) key);
+		if(i < 0) return null;
+		GhprbPullRequest[] ret = new GhprbPullRequest[pulls.length - 1];
+		System.arraycopy(pulls, 0, ret, 0, i);
+		System.arraycopy(pulls, i + 1, ret, i, pulls.length - i - 1);
+		this.pulls = ret;
+		return pulls[i];
+	}
+
+	@Override
+	public synchronized void clear(){
+		pulls = EMPTY;
+	}
+
+	@Override
+	public int size(){
+		return pulls.length;
+	}
+
+	@Override
+	public Collection<GhprbPullRequest> values(){
+		return Collections.unmodifiableList(Arrays.asList(pulls));
+	}
+
+	@Override
+	public Set<Map.Entry<Integer,GhprbPullRequest>> entrySet(){
+		final GhprbPullRequest[] pulls = this.pulls;
+		return new AbstractSet<Map.Entry<Integer,GhprbPullRequest>>() {
+			@Override
+			public Iterator<Map.Entry<Integer,GhprbPullRequest>> iterator() {
+				return new Iterator<Map.Entry<Integer,GhprbPullRequest>>() {
+					private int i = 0;
+
+					public boolean hasNext() {
+						return i < pulls.length;
+					}
+
+					public Map.Entry<Integer,GhprbPullRequest> next() {
+						if(i >= pulls.length) throw new NoSuchElementException();
+						GhprbPullRequest pull = pulls[i++];
+						return new SimpleImmutableEntry<Integer,GhprbPullRequest>(pull.getId(), pull);
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return pulls.length;
+			}
+		};
+	}
+
+	private Object readResolve(){
+		if(pulls == null){
+			pulls = EMPTY;
+		}
+		return this;
+	}
+}
@@ -1,17 +1,27 @@
 package org.jenkinsci.plugins.ghprb;
 
 import hudson.model.AbstractBuild;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashMap;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
 import org.kohsuke.github.GHCommitState;
 import org.kohsuke.github.GHEvent;
 import org.kohsuke.github.GHEventPayload.IssueComment;
@@ -26,11 +36,23 @@ import org.kohsuke.github.GHRepository;
  */
 public class GhprbRepository {
 	private static final Logger logger = Logger.getLogger(GhprbRepository.class.getName());
+	// repo-url : lookup and hook verification waiting to run, shared by jobs of the repository starting together
+	private static final Map<String,Startup> startups = new HashMap<String,Startup>();
+
 	private final String reponame;
 
 	private Map<Integer,GhprbPullRequest> pulls;
+	// target branch : last seen SHA of its tip
+	private final Map<String,String> targetHeads = new ConcurrentHashMap<String,String>();
+	// pull requests whose merged build is stale because the target branch moved
+	private final Set<Integer> staleMerges = Collections.newSetFromMap(new ConcurrentHashMap<Integer,Boolean>());
 
+	// fetched with the primary token, shared with other jobs by GhprbGHRepositoryCache
 	private GHRepository repo;
+	// last update of a pull request seen by polling, ms since epoch; 0 until the first full listing
+	private volatile long watermark;
+	// poll cycles since the last full listing of open pull requests
+	private int cyclesSinceFullPoll;
 	private Ghprb ml;
 
 	public GhprbRepository(String user,
@@ -43,87 +65,437 @@ public class GhprbRepository {
 	}
 
 	public void init(){
-		checkState();
 		for(GhprbPullRequest pull : pulls.values()){
 			pull.init(ml,this);
 		}
 	}
 
-	private boolean checkState(){
-		if(repo == null){
-			try {
-				repo = ml.getGitHub().get().getRepository(reponame);
-			} catch (IOException ex) {
-				logger.log(Level.SEVERE, "Could not retrieve repo named " + reponame + " (Do you have properly set 'GitHub project' field in job configuration?)", ex);
-				return false;
+	/**
+	 * Looks the repository up and, if asked, makes sure the web hook exists, in background so starting
+	 * of jobs doesn't wait for GitHub. Jobs of the repository starting before the lookup runs share it.
+	 */
+	public void start(boolean createHook){
+		String key = getRepoUrl();
+		synchronized(startups){
+			Startup startup = startups.get(key);
+			if(startup != null){
+				if(createHook && !startup.createHook){
+					startup.repository = this;
+					startup.createHook = true;
+				}
+				return;
+			}
+			startup = new Startup(key, this, createHook);
+			startups.put(key, startup);
+			GhprbGitHubExecutor.get().submit(startup);
+		}
+	}
+
+	private static class Startup implements Runnable {
+		private final String key;
+		private GhprbRepository repository;
+		private boolean createHook;
+
+		private Startup(String key, GhprbRepository repository, boolean createHook){
+			this.key = key;
+			this.repository = repository;
+			this.createHook = createHook;
+		}
+
+		public void run() {
+			GhprbRepository repository;
+			boolean createHook;
+			synchronized(startups){
+				// jobs starting from now on need their own run
+				startups.remove(key);
+				repository = this.repository;
+				createHook = this.createHook;
 			}
+			// the lookup of the repository reports to the breaker itself
+			repository.checkState(GhprbCircuitBreaker.get());
+			if(createHook){
+				repository.createHook();
+			}
+		}
+	}
+
+	/**
+	 * Returns true if a request can be sent to the repository. The caller has to report the outcome
+	 * of the request to the breaker, the lookup of the repository reports its own.
+	 */
+	private boolean checkState(GhprbCircuitBreaker breaker){
+		return checkState(breaker, true);
+	}
+
+	/**
+	 * Same as {@link #checkState(GhprbCircuitBreaker)}, without asking the breaker if {@code allow} is false,
+	 * for requests of {@link GhprbApiClient} which asks it itself.
+	 */
+	private boolean checkState(GhprbCircuitBreaker breaker, boolean allow){
+		GhprbGHRepositoryCache cache = GhprbGHRepositoryCache.get();
+		GhprbToken primary = ml.getGitHub().getPrimaryToken();
+		if(cache.isFailedRecently(primary, reponame)){
+			logger.log(Level.FINE, "Lookup of repo {0} failed recently, not retrying yet", reponame);
+			return false;
+		}
+		if(allow && !breaker.allowRequest()){
+			logger.log(Level.FINE, "GitHub is not available, skipping request to {0}", reponame);
+			return false;
+		}
+		GHRepository repo;
+		try {
+			repo = cache.get(primary, reponame, breaker);
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, "Could not retrieve repo named " + reponame + " (Do you have properly set 'GitHub project' field in job configuration?)", ex);
+			return false;
+		}
+		if(repo == null){
+			// another job's lookup has just failed
+			logger.log(Level.FINE, "Lookup of repo {0} failed recently, not retrying yet", reponame);
+			return false;
 		}
+		this.repo = repo;
 		return true;
 	}
 
+	/**
+	 * Returns the repository fetched with the token having the most remaining quota. Falls back to the
+	 * primary one if the token can't see the repository. Requires {@link #checkState}.
+	 */
+	private GHRepository getReadRepository(){
+		GhprbToken token = ml.getGitHub().getReadToken();
+		if(token.isPrimary()) return repo;
+		try {
+			GHRepository ret = GhprbGHRepositoryCache.get().get(token, reponame);
+			if(ret != null) return ret;
+		} catch (IOException ex) {
+			logger.log(Level.WARNING, "Could not retrieve repo {0} with {1}, reading it with the primary token", new Object[]{reponame, token.getName()});
+		}
+		return repo;
+	}
+
+	/**
+	 * Returns the repository fetched with the primary token and counts a write with it, so statuses,
+	 * comments and hooks come from one identity. Requires {@link #checkState}.
+	 */
+	private GHRepository getWriteRepository(){
+		ml.getGitHub().getWriteToken();
+		return repo;
+	}
+
 	public void check(){
-		if(!checkState()) return;
+		long cycleStart = System.nanoTime();
+		try{
+			doCheck();
+		}finally{
+			GhprbMetrics.get().recordPollCycle(reponame, cycleStart);
+		}
+	}
+
+	private void doCheck(){
+		GhprbCircuitBreaker breaker = GhprbCircuitBreaker.get();
+		if(!checkState(breaker)) return;
+
+		int fullPollInterval = GhprbTrigger.getDscp().getFullPollInterval();
+		if(watermark > 0 && fullPollInterval > 1 && ++cyclesSinceFullPoll < fullPollInterval){
+			checkUpdated();
+			return;
+		}
+		cyclesSinceFullPoll = 0;
 
 		List<GHPullRequest> prs;
+		long start = System.nanoTime();
 		try {
-			prs = repo.getPullRequests(GHIssueState.OPEN);
+			prs = getReadRepository().getPullRequests(GHIssueState.OPEN);
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.LIST_PULL_REQUESTS, start, true);
+			breaker.recordSuccess();
 		} catch (IOException ex) {
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.LIST_PULL_REQUESTS, start, false);
+			breaker.recordFailure(ex);
+			if(ex instanceof FileNotFoundException){
+				// deleted or renamed, look it up again
+				GhprbGHRepositoryCache.get().invalidate(reponame);
+			}
 			logger.log(Level.SEVERE, "Could not retrieve pull requests.", ex);
 			return;
 		}
 		Set<Integer> closedPulls = new HashSet<Integer>(pulls.keySet());
+		Map<String,String> seenTargetHeads = new HashMap<String,String>();
+		int checked = 0;
+		long lastUpdate = watermark;
 
 		for(GHPullRequest pr : prs){
 			if(pr.getHead() == null) try {
-				pr = repo.getPullRequest(pr.getNumber());
+				pr = getPullRequest(pr.getNumber());
 			} catch (IOException ex) {
 				Logger.getLogger(GhprbRepository.class.getName()).log(Level.SEVERE, "Could not retrieve pr " + pr.getNumber(), ex);
 				return;
 			}
-			check(pr);
+			if(check(pr)) checked++;
 			closedPulls.remove(pr.getNumber());
+			seenTargetHeads.put(pr.getBase().getRef(), pr.getBase().getSha());
+			lastUpdate = Math.max(lastUpdate, pr.getUpdatedAt().getTime());
+		}
+		GhprbMetrics.get().recordPullChecks(checked, prs.size() - checked);
+		if(logger.isLoggable(Level.FINE)){
+			logger.log(Level.FINE, "Checked {0} of {1} open pull requests on {2}", new Object[]{checked, prs.size(), reponame});
 		}
 
 		removeClosed(closedPulls, pulls);
+		updateTargetHeads(seenTargetHeads);
+		watermark = lastUpdate;
 	}
 
-	private void check(GHPullRequest pr){
-			Integer id = pr.getNumber();
-			GhprbPullRequest pull;
-			if(pulls.containsKey(id)){
-				pull = pulls.get(id);
-			}else{
-				pull = new GhprbPullRequest(pr, ml, this);
-				pulls.put(id, pull);
+	/**
+	 * Checks only the pull requests updated since the last poll: lists them most recently updated first
+	 * and stops at the watermark. Pull requests closed meanwhile are removed if they show up, the full
+	 * listing each {@code fullPollInterval} cycles finds the rest.
+	 */
+	private void checkUpdated(){
+		GhprbApiClient api = ml.getGitHub().getApiClient();
+		String next = "/repos/" + reponame + "/pulls?state=all&sort=updated&direction=desc&per_page=100";
+		List<JSONObject> updated = new ArrayList<JSONObject>();
+		long lastUpdate = watermark;
+		try {
+			paging:
+			while(next != null){
+				GhprbApiClient.Page page = api.getPage(next);
+				for(Object item : page.getItems()){
+					JSONObject pr = (JSONObject) item;
+					long updatedAt = parseTime(pr.getString("updated_at"));
+					// equal ones may have been updated after the last poll within the same second
+					if(updatedAt < watermark) break paging;
+					lastUpdate = Math.max(lastUpdate, updatedAt);
+					GhprbPullRequest known = pulls.get(pr.getInt("number"));
+					if(known != null && updatedAt <= known.getUpdatedTime()
+							&& known.getHead().equals(pr.getJSONObject("head").getString("sha"))){
+						// seen by the last poll already
+						continue;
+					}
+					updated.add(pr);
+				}
+				next = page.getNext();
 			}
-			pull.check(pr);
+		} catch (IOException ex) {
+			if(ex instanceof FileNotFoundException){
+				// deleted or renamed, look it up again
+				GhprbGHRepositoryCache.get().invalidate(reponame);
+			}
+			logger.log(Level.SEVERE, "Could not retrieve updated pull requests.", ex);
+			return;
+		} catch (ParseException ex) {
+			logger.log(Level.SEVERE, "Could not retrieve updated pull requests.", ex);
+			return;
+		}
+
+		Set<Integer> closedPulls = new HashSet<Integer>();
+		Map<String,String> seenTargetHeads = new HashMap<String,String>();
+		int checked = 0;
+		for(JSONObject item : updated){
+			int id = item.getInt("number");
+			if(!"open".equals(item.getString("state"))){
+				if(pulls.containsKey(id)) closedPulls.add(id);
+				continue;
+			}
+			JSONObject base = item.getJSONObject("base");
+			seenTargetHeads.put(base.getString("ref"), base.getString("sha"));
+			GHPullRequest pr;
+			try {
+				pr = getPullRequest(id);
+			} catch (IOException ex) {
+				logger.log(Level.SEVERE, "Could not retrieve pr " + id, ex);
+				return;
+			}
+			if(check(pr)) checked++;
+		}
+		GhprbMetrics.get().recordPullChecks(checked, 0);
+		if(logger.isLoggable(Level.FINE)){
+			logger.log(Level.FINE, "Checked {0} pull requests updated on {1}", new Object[]{checked, reponame});
+		}
+
+		removeClosed(closedPulls, pulls);
+		updateTargetHeads(seenTargetHeads);
+		watermark = lastUpdate;
+	}
+
+	private static long parseTime(String time) throws ParseException {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.parse(time).getTime();
+	}
+
+	private void updateTargetHeads(Map<String,String> seenTargetHeads){
+		for(Map.Entry<String,String> target : seenTargetHeads.entrySet()){
+			String previous = targetHeads.put(target.getKey(), target.getValue());
+			if(previous != null && !previous.equals(target.getValue())){
+				markStaleMerges(target.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Checks the pull request unless it is dormant and not due in this cycle, returns true if it was checked.
+	 */
+	private boolean check(GHPullRequest pr){
+		Integer id = pr.getNumber();
+		Lock lock = GhprbPullRequestLocks.get(reponame, id);
+		GhprbPullRequest pull;
+		lock.lock();
+		try{
+			pull = pulls.get(id);
+			if(pull != null && !pull.isPollDue(pr)) return false;
+		}finally{
+			lock.unlock();
+		}
+		// hooks of the pull request don't wait for these requests, only for the state change
+		GhprbPullRequest.Remote remote = read(pr, pull);
+		lock.lock();
+		try{
+			GhprbPullRequest current = pulls.get(id);
+			if(current == null){
+				// closed by a hook in the meantime
+				if(pull != null) return false;
+				current = new GhprbPullRequest(remote, ml, this);
+				pulls.put(id, current);
+			}
+			current.check(remote);
+			return true;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	// requests of a check, sent before the lock of the pull request is taken
+	private GhprbPullRequest.Remote read(GHPullRequest pr, GhprbPullRequest pull){
+		GhprbPullRequest.Remote remote = GhprbPullRequest.read(pr, this, pull);
+		String sha = pr.getHead().getSha();
+		String target = pr.getBase().getRef();
+		if(pull == null || !sha.equals(pull.getHead()) || !target.equals(pull.getTarget())){
+			// the new commit or target will be built, its changed files are then cached for the path filter
+			ml.getBuilds().readChangedFiles(pr.getNumber(), target, sha);
+		}
+		return remote;
 	}
 
 	private void removeClosed(Set<Integer> closedPulls, Map<Integer,GhprbPullRequest> pulls) {
 		if(closedPulls.isEmpty()) return;
 
 		for(Integer id : closedPulls){
-			pulls.remove(id);
+			Lock lock = GhprbPullRequestLocks.get(reponame, id);
+			lock.lock();
+			try{
+				pulls.remove(id);
+			}finally{
+				lock.unlock();
+			}
+		}
+	}
+
+	private void markStaleMerges(String target){
+		int count = 0;
+		for(GhprbPullRequest pull : pulls.values()){
+			if(target.equals(pull.getTarget()) && pull.isMergeable()){
+				staleMerges.add(pull.getId());
+				count++;
+			}
+		}
+		logger.log(Level.INFO, "Target branch {0} of {1} moved, {2} merged builds are stale", new Object[]{target, reponame, count});
+	}
+
+	/**
+	 * Re-triggers merged builds made stale by a move of their target branch. At most
+	 * {@code maxMergeRebuildsPerCycle} of them, most recently updated pull requests first.
+	 */
+	public void rebuildStaleMerges(){
+		if(staleMerges.isEmpty()) return;
+		int max = GhprbTrigger.getDscp().getMaxMergeRebuildsPerCycle();
+		if(max <= 0){
+			staleMerges.clear();
+			return;
+		}
+
+		List<GhprbPullRequest> stale = new ArrayList<GhprbPullRequest>();
+		for(Integer id : staleMerges){
+			GhprbPullRequest pull = pulls.get(id);
+			if(pull == null){
+				staleMerges.remove(id);
+			}else{
+				stale.add(pull);
+			}
+		}
+		Collections.sort(stale, new Comparator<GhprbPullRequest>() {
+			public int compare(GhprbPullRequest o1, GhprbPullRequest o2) {
+				long u1 = o1.getUpdatedTime();
+				long u2 = o2.getUpdatedTime();
+				return u2 < u1 ? -1 : (u2 == u1 ? 0 : 1);
+			}
+		});
+
+		for(GhprbPullRequest pull : stale.subList(0, Math.min(max, stale.size()))){
+			staleMerges.remove(pull.getId());
+			GhprbPullRequest.Remote remote;
+			try {
+				remote = GhprbPullRequest.readMergeable(getPullRequest(pull.getId()), this);
+			} catch (GhprbCircuitBreaker.OpenException ex) {
+				// try again once GitHub is back
+				staleMerges.add(pull.getId());
+				logger.log(Level.INFO, "GitHub is not available, deferring rebuilds of stale merges on {0}", reponame);
+				return;
+			} catch (IOException ex) {
+				logger.log(Level.SEVERE, "Could not retrieve pr " + pull.getId(), ex);
+				continue;
+			}
+			Lock lock = GhprbPullRequestLocks.get(reponame, pull.getId());
+			lock.lock();
+			try {
+				if(pulls.get(pull.getId()) == pull){
+					pull.checkTargetMoved(remote);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		if(!staleMerges.isEmpty()){
+			logger.log(Level.INFO, "{0} stale merged builds on {1} deferred to the next cycle", new Object[]{staleMerges.size(), reponame});
 		}
 	}
 
 	public void createCommitStatus(AbstractBuild<?,?> build, GHCommitState state, String message, int id){
+		createCommitStatus(build, state, message, id, null);
+	}
+
+	/**
+	 * Sets the status of the build's commit and runs {@code published} once it is on GitHub.
+	 */
+	public void createCommitStatus(AbstractBuild<?,?> build, GHCommitState state, String message, int id, Runnable published){
 		String sha1 = build.getCause(GhprbCause.class).getCommit();
-		createCommitStatus(sha1, state, Jenkins.getInstance().getRootUrl() + build.getUrl(), message, id);
+		createCommitStatus(sha1, state, Jenkins.getInstance().getRootUrl() + build.getUrl(), message, id, published);
 	}
 
 	public void createCommitStatus(String sha1, GHCommitState state, String url, String message, int id) {
+		createCommitStatus(sha1, state, url, message, id, null);
+	}
+
+	private void createCommitStatus(String sha1, GHCommitState state, String url, String message, int id, Runnable published) {
 		logger.log(Level.INFO, "Setting status of {0} to {1} with url {2} and message: {3}", new Object[]{sha1, state, url, message});
-		if(!checkState()) return;
+		GhprbCommitStatusPublisher.get().publish(this, sha1, state, url, message, id, published);
+	}
+
+	void postCommitStatus(String sha1, GHCommitState state, String url, String message) throws IOException {
+		GhprbCircuitBreaker breaker = GhprbCircuitBreaker.get();
+		if(!checkState(breaker)){
+			if(breaker.isOpen()) throw new GhprbCircuitBreaker.OpenException(reponame, breaker.getRetryDelay());
+			throw new IOException("Repository " + reponame + " is not available");
+		}
+		long start = System.nanoTime();
 		try {
-			repo.createCommitStatus(sha1, state, url, message);
+			getWriteRepository().createCommitStatus(sha1, state, url, message);
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.CREATE_COMMIT_STATUS, start, true);
+			breaker.recordSuccess();
 		} catch (IOException ex) {
-			if(GhprbTrigger.getDscp().getUseComments()){
-				logger.log(Level.INFO, "Could not update commit status of the Pull Request on GitHub. Trying to send comment.", ex);
-				addComment(id, message);
-			}else{
-				logger.log(Level.SEVERE, "Could not update commit status of the Pull Request on GitHub.", ex);
-			}
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.CREATE_COMMIT_STATUS, start, false);
+			breaker.recordFailure(ex);
+			throw ex;
 		}
 	}
 
@@ -131,22 +503,134 @@ public class GhprbRepository {
 		return reponame;
 	}
 
+	/**
+	 * Returns full name of the job this repository checks pull requests for.
+	 */
+	String getJobName() {
+		return ml.getProject().getFullName();
+	}
+
+	/**
+	 * Returns the pull request if it is open, as far as the last check or hook knows, null otherwise.
+	 */
+	GhprbPullRequest getPull(int id) {
+		return pulls.get(id);
+	}
+
 	public void addComment(int id, String comment) {
 		if (comment.isEmpty())
 			return;
-		if(!checkState()) return;
+		GhprbCircuitBreaker breaker = GhprbCircuitBreaker.get();
+		if(!checkState(breaker)){
+			logger.log(Level.SEVERE, "Couldn''t add comment to pull request #{0}, GitHub is not available: ''{1}''", new Object[]{id, comment});
+			return;
+		}
+		long start = System.nanoTime();
 		try {
-			repo.getPullRequest(id).comment(comment);
+			getWriteRepository().getPullRequest(id).comment(comment);
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.ADD_COMMENT, start, true);
+			breaker.recordSuccess();
 		} catch (IOException ex) {
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.ADD_COMMENT, start, false);
+			breaker.recordFailure(ex);
 			logger.log(Level.SEVERE, "Couldn't add comment to pull request #" + id + ": '" + comment + "'", ex);
 		}
 	}
 
+	/**
+	 * Edits the comment with build results owned by this job, creating it if it doesn't exist yet,
+	 * so the pull request doesn't get a new comment for each build.
+	 */
+	public void setSummaryComment(int id, String comment) {
+		if (comment.isEmpty())
+			return;
+		GhprbPullRequest pull = pulls.get(id);
+		if(pull == null){
+			addComment(id, comment);
+			return;
+		}
+		if(!checkState(GhprbCircuitBreaker.get(), false)){
+			logger.log(Level.SEVERE, "Couldn''t set summary comment of pull request #{0}, GitHub is not available: ''{1}''", new Object[]{id, comment});
+			return;
+		}
+
+		Lock lock = GhprbPullRequestLocks.get(reponame, id);
+		while(comment != null){
+			long commentId;
+			lock.lock();
+			try{
+				commentId = pull.getSummaryCommentId();
+				// only one build creates the comment, the others leave their text to it
+				if(commentId == 0 && !pull.reserveSummaryComment(comment)) return;
+			}finally{
+				lock.unlock();
+			}
+
+			if(commentId > 0){
+				if(editComment(id, commentId, comment)) return;
+				// deleted, create a new one unless another build did already
+				lock.lock();
+				try{
+					if(pull.getSummaryCommentId() == commentId) pull.setSummaryCommentId(0);
+				}finally{
+					lock.unlock();
+				}
+				continue;
+			}
+
+			long created = createComment(id, comment);
+			lock.lock();
+			try{
+				// the id is saved with the pull request by the next save of the configuration
+				comment = pull.createdSummaryComment(created);
+			}finally{
+				lock.unlock();
+			}
+		}
+	}
+
+	// returns false if the comment was deleted
+	private boolean editComment(int id, long commentId, String comment) {
+		JSONObject body = new JSONObject();
+		body.put("body", comment);
+		try {
+			ml.getGitHub().getApiClient().patch("/repos/" + reponame + "/issues/comments/" + commentId, body);
+		} catch (FileNotFoundException ex) {
+			logger.log(Level.INFO, "Summary comment #{0} of pull request #{1} was deleted, creating a new one", new Object[]{commentId, id});
+			return false;
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, "Couldn't edit summary comment of pull request #" + id + ": '" + comment + "'", ex);
+		}
+		return true;
+	}
+
+	// returns id of the created comment, 0 if it failed
+	private long createComment(int id, String comment) {
+		JSONObject body = new JSONObject();
+		body.put("body", comment);
+		long start = System.nanoTime();
+		try {
+			JSONObject created = ml.getGitHub().getApiClient().post("/repos/" + reponame + "/issues/" + id + "/comments", body);
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.ADD_COMMENT, start, true);
+			return created.getLong("id");
+		} catch (IOException ex) {
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.ADD_COMMENT, start, false);
+			logger.log(Level.SEVERE, "Couldn't add comment to pull request #" + id + ": '" + comment + "'", ex);
+			return 0;
+		}
+	}
+
 	public void closePullRequest(int id) {
-		if(!checkState()) return;
+		GhprbCircuitBreaker breaker = GhprbCircuitBreaker.get();
+		if(!checkState(breaker)) return;
+		long start = System.nanoTime();
 		try {
-			repo.getPullRequest(id).close();
+			getWriteRepository().getPullRequest(id).close();
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.CLOSE_PULL_REQUEST, start, true);
+			breaker.recordSuccess();
 		} catch (IOException ex) {
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.CLOSE_PULL_REQUEST, start, false);
+			breaker.recordFailure(ex);
 			logger.log(Level.SEVERE, "Couldn't close the pull request #" + id + ": '", ex);
 		}
 	}
@@ -156,16 +640,26 @@ public class GhprbRepository {
 	}
 
 
-	private static final EnumSet<GHEvent> EVENTS = EnumSet.of(GHEvent.ISSUE_COMMENT, GHEvent.PULL_REQUEST);
-	private boolean hookExist() throws IOException{
-		for(GHHook h : repo.getHooks()){
+	private static final EnumSet<GHEvent> EVENTS = EnumSet.of(GHEvent.ISSUE_COMMENT, GHEvent.PULL_REQUEST, GHEvent.PUSH);
+	/**
+	 * Returns the web hook of this Jenkins, null if there is none.
+	 */
+	private GHHook getHook() throws IOException{
+		List<GHHook> hooks;
+		long start = System.nanoTime();
+		try {
+			hooks = repo.getHooks();
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.LIST_HOOKS, start, true);
+		} catch (IOException ex) {
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.LIST_HOOKS, start, false);
+			throw ex;
+		}
+		for(GHHook h : hooks){
 			if(!"web".equals(h.getName())) continue;
-			//System.out.println("  "+h.getEvents());
-			//if(!EVENTS.equals(h.getEvents())) continue;
 			if(!ml.getHookUrl().equals(h.getConfig().get("url"))) continue;
-			return true;
+			return h;
 		}
-		return false;
+		return null;
 	}
 
 	public boolean createHook(){
@@ -175,11 +669,31 @@ public class GhprbRepository {
 			return false;
 		}
 		try {
-			if(hookExist()) return true;
+			GHHook hook = getHook();
+			if(hook != null){
+				if(EVENTS.equals(hook.getEvents())) return true;
+				// e.g. created before push events were needed, recreate it with all of them
+				logger.log(Level.INFO, "Web hook of {0} has events {1}, recreating it with {2}", new Object[]{reponame, hook.getEvents(), EVENTS});
+				long start = System.nanoTime();
+				try {
+					hook.delete();
+					GhprbMetrics.get().recordCall(GhprbMetrics.Call.DELETE_HOOK, start, true);
+				} catch (IOException ex) {
+					GhprbMetrics.get().recordCall(GhprbMetrics.Call.DELETE_HOOK, start, false);
+					throw ex;
+				}
+			}
 			Map<String, String> config = new HashMap<String, String>();
 			config.put("url", new URL(ml.getHookUrl()).toExternalForm());
 			config.put("insecure_ssl", "1");
-			repo.createHook("web", config, EVENTS, true);
+			long start = System.nanoTime();
+			try {
+				getWriteRepository().createHook("web", config, EVENTS, true);
+				GhprbMetrics.get().recordCall(GhprbMetrics.Call.CREATE_HOOK, start, true);
+			} catch (IOException ex) {
+				GhprbMetrics.get().recordCall(GhprbMetrics.Call.CREATE_HOOK, start, false);
+				throw ex;
+			}
 			return true;
 		}catch(IOException ex){
 			logger.log(Level.SEVERE, "Couldn''t create web hook for repository {0}. Does the user "
@@ -188,8 +702,34 @@ public class GhprbRepository {
 		}
 	}
 
+	/**
+	 * Returns files changed by the pull request against its target branch, null if GitHub doesn't list them all.
+	 */
+	public List<String> getChangedFiles(int id, String target, String sha) throws IOException{
+		return GhprbChangedFilesCache.get().getChangedFiles(this, id, target, sha);
+	}
+
+	GhprbGitHub getGitHub(){
+		return ml.getGitHub();
+	}
+
 	public GHPullRequest getPullRequest(int id) throws IOException{
-		return repo.getPullRequest(id);
+		GhprbCircuitBreaker breaker = GhprbCircuitBreaker.get();
+		if(!checkState(breaker)){
+			if(breaker.isOpen()) throw new GhprbCircuitBreaker.OpenException(reponame, breaker.getRetryDelay());
+			throw new IOException("Repository " + reponame + " is not available");
+		}
+		long start = System.nanoTime();
+		try {
+			GHPullRequest pr = getReadRepository().getPullRequest(id);
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.GET_PULL_REQUEST, start, true);
+			breaker.recordSuccess();
+			return pr;
+		} catch (IOException ex) {
+			GhprbMetrics.get().recordCall(GhprbMetrics.Call.GET_PULL_REQUEST, start, false);
+			breaker.recordFailure(ex);
+			throw ex;
+		}
 	}
 
 	void onIssueCommentHook(IssueComment issueComment) throws IOException {
@@ -202,38 +742,85 @@ public class GhprbRepository {
 					new Object[]{id,issueComment.getComment().getUser(),issueComment.getComment().getBody()});
 		}
 		if(!"created".equals(issueComment.getAction())) return;
-		GhprbPullRequest pull = pulls.get(id);
-		if(pull == null){
+		if(pulls.get(id) == null){
 			if(logger.isLoggable(Level.FINER)){
 				logger.log(Level.FINER, "Pull request #{0} desn't exist", id);
 			}
 			return;
 		}
-		pull.check(issueComment.getComment());
+		GhprbPullRequest.Remote remote = null;
+		try{
+			remote = GhprbPullRequest.readMergeable(getPullRequest(id), this);
+		} catch (IOException e){
+			logger.log(Level.SEVERE, "Couldn't get GHPullRequest for checking mergeable state");
+		}
+		Lock lock = GhprbPullRequestLocks.get(reponame, id);
+		lock.lock();
+		try{
+			GhprbPullRequest pull = pulls.get(id);
+			if(pull == null) return;
+			pull.check(issueComment.getComment(), remote);
+		}finally{
+			lock.unlock();
+		}
+		GhprbTrigger.getDscp().save();
+	}
+
+	void onPushHook(String branch, String sha) {
+		// most pushes go to branches of pull requests, not to their targets
+		if(!isTarget(branch)){
+			logger.log(Level.FINE,"Repository: {0}; Push to: {1}; no open pull request targets it", new Object[]{reponame,branch});
+			return;
+		}
+		logger.log(Level.INFO,"Repository: {0}; Push to: {1}; SHA: {2}", new Object[]{reponame,branch,sha});
+		String previous = targetHeads.put(branch, sha);
+		if(sha.equals(previous)) return;
+		markStaleMerges(branch);
+		rebuildStaleMerges();
 		GhprbTrigger.getDscp().save();
 	}
 
+	private boolean isTarget(String branch){
+		for(GhprbPullRequest pull : pulls.values()){
+			if(branch.equals(pull.getTarget())) return true;
+		}
+		return false;
+	}
+
 	void onPullRequestHook(PullRequest pr) {
 		logger.log(Level.INFO,"Repository: {0}; Pull request: {1}; Action: {2}", new Object[]{reponame,pr.getNumber(),pr.getAction()});
-		if("opened".equals(pr.getAction()) || "reopened".equals(pr.getAction())){
-			GhprbPullRequest pull = pulls.get(pr.getNumber());
-			if(pull == null){
-				pull = new GhprbPullRequest(pr.getPullRequest(), ml, this);
-				pulls.put(pr.getNumber(), pull);
-			}
-			pull.check(pr.getPullRequest());
-		}else if("synchronize".equals(pr.getAction())){
-			GhprbPullRequest pull = pulls.get(pr.getNumber());
-			if(pull == null){
-				logger.log(Level.SEVERE, "Pull Request #{0} doesn't exist", pr.getNumber());
-				return;
+		GhprbPullRequest.Remote remote = null;
+		if("opened".equals(pr.getAction()) || "reopened".equals(pr.getAction()) || "synchronize".equals(pr.getAction())){
+			// without the lock, polling and other hooks of the pull request don't wait for the requests
+			remote = read(pr.getPullRequest(), pulls.get(pr.getNumber()));
+		}
+		Lock lock = GhprbPullRequestLocks.get(reponame, pr.getNumber());
+		lock.lock();
+		try{
+			if("opened".equals(pr.getAction()) || "reopened".equals(pr.getAction())){
+				GhprbPullRequest pull = pulls.get(pr.getNumber());
+				if(pull == null){
+					pull = new GhprbPullRequest(remote, ml, this);
+					pulls.put(pr.getNumber(), pull);
+				}
+				pull.resetPolling();
+				pull.check(remote);
+			}else if("synchronize".equals(pr.getAction())){
+				GhprbPullRequest pull = pulls.get(pr.getNumber());
+				if(pull == null){
+					logger.log(Level.SEVERE, "Pull Request #{0} doesn't exist", pr.getNumber());
+					return;
+				}
+				pull.resetPolling();
+				pull.check(remote);
+			}else if("closed".equals(pr.getAction())){
+				logger.log(Level.INFO,"Removin - Repository: {0}; Pull request: {1}; Action: {2}", new Object[]{reponame,pr.getNumber(),pr.getAction()});
+				pulls.remove(pr.getNumber());
+			}else{
+				logger.log(Level.WARNING, "Unknown Pull Request hook action: {0}", pr.getAction());
 			}
-			pull.check(pr.getPullRequest());
-		}else if("closed".equals(pr.getAction())){
-			logger.log(Level.INFO,"Removin - Repository: {0}; Pull request: {1}; Action: {2}", new Object[]{reponame,pr.getNumber(),pr.getAction()});
-			pulls.remove(pr.getNumber());
-		}else{
-			logger.log(Level.WARNING, "Unknown Pull Request hook action: {0}", pr.getAction());
+		}finally{
+			lock.unlock();
 		}
 		GhprbTrigger.getDscp().save();
 	}
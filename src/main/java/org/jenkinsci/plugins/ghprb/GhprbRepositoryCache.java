@@ -41,21 +41,24 @@ public class GhprbRepositoryCache {
 			logger.log(Level.SEVERE, "Project: {0} doesn't contain the GhprbTrigger - GitHub Pull request builder is not enabled!",project.getName());
 			return;
 		}
+		put(repository.getName(), project.getName(), repository);
+	}
 
-		Map<String,GhprbRepository> repositories = repoCache.get(repository.getName());
+	synchronized void put(String repoName, String projectName, GhprbRepository repository){
+		Map<String,GhprbRepository> repositories = repoCache.get(repoName);
 		if(repositories == null){
 			// create repository projects cache
 			repositories = Maps.newHashMap();
-			repoCache.put(repository.getName(), repositories);
+			repoCache.put(repoName, repositories);
 		}else{
 			// or remove for project for update
-			if(repositories.containsKey(project.getName()))
-				remove(repository.getName(),project.getName());
+			if(repositories.containsKey(projectName))
+				remove(repoName,projectName);
 		}
 
 		// update
-		logger.log(Level.INFO,"Register project: {0} for callback from: {1} repo", new Object[]{project.getName(),repository.getName()});
-		repositories.put(project.getName(), repository);
+		logger.log(Level.INFO,"Register project: {0} for callback from: {1} repo", new Object[]{projectName,repoName});
+		repositories.put(projectName, repository);
 	}
 
 	public synchronized Set<GhprbRepository> getRepoSet(String repoName){
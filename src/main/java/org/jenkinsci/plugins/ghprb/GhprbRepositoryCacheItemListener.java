@@ -11,8 +11,9 @@ import java.util.logging.Logger;
 
 /**
  * Listener which keeps the {@link org.jenkinsci.plugins.ghprb.GhprbRepositoryCache} updated. When Jenkins is up
- * and running the {@link GhprbRepositoryCacheItemListener#onLoaded()} initializes the cache and every time when
- * the project has been created or the configuration updated then the cache is actualised.
+ * and running the {@link GhprbRepositoryCacheItemListener#onLoaded()} initializes the cache, replays the
+ * {@link GhprbWebhookSpool}, and every time when the project has been created or the configuration updated then
+ * the cache is actualised.
  *
  * @author Pavol Gressa <pavol.gressa@gooddata.com>
  */
@@ -28,6 +29,8 @@ public class GhprbRepositoryCacheItemListener extends ItemListener {
 		for(AbstractProject<?,?> job : Jenkins.getInstance().getAllItems(AbstractProject.class)){
 			processChange(job);
 		}
+		// the repositories are known now, hand them the deliveries which weren't handled before the restart
+		GhprbWebhookSpool.get().replay();
 	}
 
 	@Override
@@ -11,6 +11,7 @@ import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
 import org.acegisecurity.Authentication;
 import org.acegisecurity.context.SecurityContextHolder;
 import org.kohsuke.github.GHEventPayload;
@@ -41,6 +42,8 @@ public class GhprbRootAction implements UnprotectedRootAction {
 	}
 
 	public void doIndex(StaplerRequest req, StaplerResponse resp) {
+		final long received = System.nanoTime();
+		final GhprbTraceAction trace = GhprbTraceAction.received();
 		String event = req.getHeader("X-GitHub-Event");
 		String delivery = req.getHeader("X-GitHub-Delivery");
 		String payload = req.getParameter("payload");
@@ -49,33 +52,75 @@ public class GhprbRootAction implements UnprotectedRootAction {
 			return;
 		}
 
+		logger.log(Level.INFO, "Got payload event: {0}; delivery: {1}", new Object[]{event,delivery});
+		// handled in background, the spool keeps it until then
+		GhprbWebhookSpool.get().accept(event, delivery, payload, trace, received);
+		resp.setStatus(HttpServletResponse.SC_OK);
+	}
+
+	/**
+	 * Webhook delivery parsed for the repositories it is for.
+	 */
+	interface Hook {
+		Set<GhprbRepository> getRepos();
+
+		void handle(GhprbRepository repo) throws IOException;
+	}
+
+	/**
+	 * Parses the delivery, returns null if it isn't for the plugin.
+	 */
+	static Hook parse(String event, String payload) throws IOException {
 		GhprbGitHub gh = GhprbTrigger.getDscp().getGitHub();
+		if("issue_comment".equals(event)){
+			final GHEventPayload.IssueComment issueComment = gh.get().parseEventPayload(new StringReader(payload), GHEventPayload.IssueComment.class);
+			final Set<GhprbRepository> repos = getRepos(issueComment.getRepository());
+			return new Hook() {
+				public Set<GhprbRepository> getRepos() {
+					return repos;
+				}
 
-		logger.log(Level.INFO, "Got payload event: {0}; delivery: {1}", new Object[]{event,delivery});
-		try{
-			if("issue_comment".equals(event)){
-				GHEventPayload.IssueComment issueComment = gh.get().parseEventPayload(new StringReader(payload), GHEventPayload.IssueComment.class);
-				for(GhprbRepository repo : getRepos(issueComment.getRepository())){
-					logger.log(Level.INFO, "Payload: {0} for {1}",new Object[]{event,repo.getRepoUrl()});
+				public void handle(GhprbRepository repo) throws IOException {
 					repo.onIssueCommentHook(issueComment);
 				}
-			}else if("pull_request".equals(event)) {
-				GHEventPayload.PullRequest pr = gh.get().parseEventPayload(new StringReader(payload), GHEventPayload.PullRequest.class);
-				for(GhprbRepository repo : getRepos(pr.getPullRequest().getRepository())){
-					logger.log(Level.INFO, "Payload: {0} for {1}",new Object[]{event,repo.getRepoUrl()});
+			};
+		}else if("pull_request".equals(event)) {
+			final GHEventPayload.PullRequest pr = gh.get().parseEventPayload(new StringReader(payload), GHEventPayload.PullRequest.class);
+			final Set<GhprbRepository> repos = getRepos(pr.getPullRequest().getRepository());
+			return new Hook() {
+				public Set<GhprbRepository> getRepos() {
+					return repos;
+				}
+
+				public void handle(GhprbRepository repo) {
 					repo.onPullRequestHook(pr);
 				}
-			}else{
-				logger.log(Level.WARNING, "Request not known");
+			};
+		}else if("push".equals(event)) {
+			JSONObject push = JSONObject.fromObject(payload);
+			String ref = push.optString("ref");
+			if(!ref.startsWith("refs/heads/") || push.optBoolean("deleted")){
+				return null;
 			}
-			resp.setStatus(HttpServletResponse.SC_OK);
-		}catch(IOException ex){
-			logger.log(Level.SEVERE, "Failed to parse github hook payload.", ex);
-			resp.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			final String branch = ref.substring("refs/heads/".length());
+			final String sha = push.getString("after");
+			final Set<GhprbRepository> repos = getRepos(getPushRepoName(push.getJSONObject("repository")));
+			return new Hook() {
+				public Set<GhprbRepository> getRepos() {
+					return repos;
+				}
+
+				public void handle(GhprbRepository repo) {
+					repo.onPushHook(branch, sha);
+				}
+			};
+		}else{
+			logger.log(Level.WARNING, "Request not known");
+			return null;
 		}
 	}
 
-	private Set<GhprbRepository> getRepos(GHRepository repo) throws IOException{
+	private static Set<GhprbRepository> getRepos(GHRepository repo) throws IOException{
 		try{
 			return getRepos(repo.getOwner().getLogin() + "/" + repo.getName());
 		}catch(Exception ex){
@@ -94,7 +139,15 @@ public class GhprbRootAction implements UnprotectedRootAction {
 		}
 	}
 
-	private Set<GhprbRepository> getRepos(String repo){
+	// push payloads don't contain the owner's login, just its name
+	private static String getPushRepoName(JSONObject repo){
+		if(repo.has("full_name")){
+			return repo.getString("full_name");
+		}
+		return repo.getJSONObject("owner").getString("name") + "/" + repo.getString("name");
+	}
+
+	private static Set<GhprbRepository> getRepos(String repo){
 		return GhprbRepositoryCache.get().getRepoSet(repo);
 	}
 }
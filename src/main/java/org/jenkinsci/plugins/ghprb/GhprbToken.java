@@ -0,0 +1,156 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.sf.json.JSONObject;
+import org.apache.commons.codec.binary.Base64;
+import org.kohsuke.github.GHRateLimit;
+import org.kohsuke.github.GitHub;
+
+/**
+ * One credential of the pool in {@link GhprbGitHub} with its rate limit. The remaining quota is taken
+ * from GitHub's responses when the plugin sees them, between those it is estimated by counting calls.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbToken {
+	private static final Logger logger = Logger.getLogger(GhprbToken.class.getName());
+	private static final long RATE_LIMIT_REFRESH = 60000; // ms
+
+	private final String name;
+	private final String serverAPIUrl;
+	private final String accessToken;
+	private final String username;
+	private final String password;
+	private final boolean primary;
+	private GitHub gh;
+
+	// -1 if unknown
+	private final AtomicInteger remaining = new AtomicInteger(-1);
+	private volatile int limit = -1;
+	private final AtomicLong rateLimitUpdated = new AtomicLong();
+	private final AtomicLong reads = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+
+	GhprbToken(String name, String serverAPIUrl, String accessToken, String username, String password, boolean primary){
+		this.name = name;
+		this.serverAPIUrl = serverAPIUrl;
+		this.accessToken = accessToken;
+		this.username = username;
+		this.password = password;
+		this.primary = primary;
+	}
+
+	public synchronized GitHub get() throws IOException{
+		if(gh == null){
+			if(accessToken != null && !accessToken.isEmpty()) {
+				try {
+					gh = GitHub.connectUsingOAuth(serverAPIUrl, accessToken);
+				} catch(IOException e) {
+					logger.log(Level.SEVERE, "Can''t connect to {0} using oauth", serverAPIUrl);
+					throw e;
+				}
+			} else {
+				gh = GitHub.connect(username, null, password);
+			}
+			// a permit of the host is taken around each request
+			gh.setConnector(GhprbPermitConnection.connector(GhprbGitHubExecutor.getHost(serverAPIUrl)));
+		}
+		return gh;
+	}
+
+	/**
+	 * Returns the value of the Authorization header, null for anonymous access.
+	 */
+	String getAuthorization(){
+		if(accessToken != null && !accessToken.isEmpty()){
+			return "token " + accessToken;
+		}else if(username != null && !username.isEmpty()){
+			return "Basic " + new String(Base64.encodeBase64((username + ":" + password).getBytes()));
+		}
+		return null;
+	}
+
+	/**
+	 * Name to report the token by, doesn't reveal the token.
+	 */
+	public String getName(){
+		return name;
+	}
+
+	/**
+	 * Returns true for the configured credentials, the identity writing statuses and comments.
+	 */
+	public boolean isPrimary(){
+		return primary;
+	}
+
+	/**
+	 * Returns the estimated remaining quota, -1 if unknown.
+	 */
+	public int getRemaining(){
+		return remaining.get();
+	}
+
+	void recordRead(){
+		reads.incrementAndGet();
+		decrementRemaining();
+	}
+
+	void recordWrite(){
+		writes.incrementAndGet();
+		decrementRemaining();
+	}
+
+	private void decrementRemaining(){
+		int r;
+		do{
+			r = remaining.get();
+		}while(r > 0 && !remaining.compareAndSet(r, r - 1));
+	}
+
+	/**
+	 * Records the rate limit reported by GitHub in response headers.
+	 */
+	void recordRateLimit(int remaining, int limit){
+		this.remaining.set(remaining);
+		this.limit = limit;
+		rateLimitUpdated.set(System.currentTimeMillis());
+		if(primary){
+			GhprbMetrics.get().recordRateLimit(remaining, limit);
+		}
+	}
+
+	/**
+	 * Asks GitHub for the rate limit if no call reported it recently. Only one thread asks at a time.
+	 */
+	void refreshRateLimit(){
+		long updated = rateLimitUpdated.get();
+		long now = System.currentTimeMillis();
+		if(now - updated <= RATE_LIMIT_REFRESH || !rateLimitUpdated.compareAndSet(updated, now)) return;
+		GhprbCircuitBreaker breaker = GhprbCircuitBreaker.get(serverAPIUrl);
+		if(!breaker.allowRequest()) return;
+		try {
+			// doesn't count against the rate limit
+			GHRateLimit rateLimit = get().getRateLimit();
+			breaker.recordSuccess();
+			recordRateLimit(rateLimit.remaining, rateLimit.limit);
+		} catch (IOException ex) {
+			breaker.recordFailure(ex);
+			logger.log(Level.FINE, "Couldn''t obtain the rate limit of token {0}", name);
+		}
+	}
+
+	public JSONObject toJSON(){
+		JSONObject ret = new JSONObject();
+		ret.put("primary", primary);
+		ret.put("remaining", remaining.get());
+		ret.put("limit", limit);
+		ret.put("reads", reads.get());
+		ret.put("writes", writes.get());
+		return ret;
+	}
+}
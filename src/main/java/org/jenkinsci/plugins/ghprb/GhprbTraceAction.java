@@ -0,0 +1,100 @@
+package org.jenkinsci.plugins.ghprb;
+
+import hudson.model.InvisibleAction;
+import java.util.Arrays;
+
+/**
+ * Timestamps of the way from a webhook or a poll to the final commit status of a build. The trace
+ * follows the thread handling the hook or poll until the build is queued, then it is attached to the
+ * build. When the final status is posted, it is aggregated per job by {@link GhprbMetrics}.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbTraceAction extends InvisibleAction {
+
+	public enum Stage {
+		/** webhook received, not set for polling */
+		RECEIVED,
+		/** handling of the webhook or poll started */
+		ROUTED,
+		/** pull request checked, build decided */
+		CHECKED,
+		QUEUED,
+		STARTED,
+		COMPLETED,
+		STATUS_POSTED
+	}
+
+	private static final ThreadLocal<GhprbTraceAction> current = new ThreadLocal<GhprbTraceAction>();
+
+	// ms since epoch, 0 if the stage wasn't reached
+	private final long[] times;
+
+	public GhprbTraceAction(){
+		times = new long[Stage.values().length];
+	}
+
+	private GhprbTraceAction(long[] times){
+		this.times = times;
+	}
+
+	/**
+	 * Returns a new trace of a webhook received now.
+	 */
+	public static GhprbTraceAction received(){
+		GhprbTraceAction trace = new GhprbTraceAction();
+		trace.mark(Stage.RECEIVED);
+		return trace;
+	}
+
+	/**
+	 * Makes the trace current for this thread and marks it routed. Has to be followed by {@link #end()}.
+	 */
+	public static void begin(GhprbTraceAction trace){
+		trace.mark(Stage.ROUTED);
+		current.set(trace);
+	}
+
+	public static void end(){
+		current.remove();
+	}
+
+	/**
+	 * Marks the stage of the current trace, if there is one.
+	 */
+	public static void markCurrent(Stage stage){
+		GhprbTraceAction trace = current.get();
+		if(trace != null){
+			trace.mark(stage);
+		}
+	}
+
+	/**
+	 * Returns a trace for a build queued now: a copy of the current trace, or a new one if the build
+	 * isn't queued while handling a webhook or poll.
+	 */
+	public static GhprbTraceAction queued(){
+		GhprbTraceAction trace = current.get();
+		trace = trace == null ? new GhprbTraceAction() : trace.copy();
+		trace.mark(Stage.QUEUED);
+		return trace;
+	}
+
+	/**
+	 * Returns a copy, so webhooks handled by several jobs are traced separately.
+	 */
+	public synchronized GhprbTraceAction copy(){
+		return new GhprbTraceAction(Arrays.copyOf(times, times.length));
+	}
+
+	public synchronized void mark(Stage stage){
+		times[stage.ordinal()] = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns when the stage was reached in ms since epoch, 0 if it wasn't.
+	 */
+	public synchronized long getTime(Stage stage){
+		return times[stage.ordinal()];
+	}
+}
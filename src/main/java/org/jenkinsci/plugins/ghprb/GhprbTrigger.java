@@ -9,14 +9,14 @@ import hudson.model.AbstractProject;
 import hudson.model.ParameterDefinition;
 import hudson.model.ParametersAction;
 import hudson.model.ParametersDefinitionProperty;
-import hudson.model.Run;
 import hudson.model.StringParameterValue;
 import hudson.model.queue.QueueTaskFuture;
 import hudson.triggers.TimerTrigger;
-import hudson.plugins.git.util.BuildData;
 import hudson.triggers.Trigger;
 import hudson.triggers.TriggerDescriptor;
 import hudson.util.FormValidation;
+import hudson.util.Secret;
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.kohsuke.github.GHAuthorization;
 import org.kohsuke.github.GHCommitState;
@@ -30,8 +30,10 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -47,12 +49,18 @@ public final class GhprbTrigger extends Trigger<AbstractProject<?, ?>> {
 	private final Boolean useGitHubHooks;
 	private final Boolean permitAll;
 	private Boolean autoCloseFailedPullRequests;
+	private String includedRegions;
+	private String excludedRegions;
+	private Integer batchSize;
 
 	transient private Ghprb ml;
+	transient private GhprbPathFilter pathFilter;
+	transient private Future<?> checking;
 
 	@DataBoundConstructor
 	public GhprbTrigger(String cron, String triggerPhrase,
-			Boolean onlyTriggerPhrase, Boolean useGitHubHooks, Boolean permitAll, Boolean autoCloseFailedPullRequests) throws ANTLRException{
+			Boolean onlyTriggerPhrase, Boolean useGitHubHooks, Boolean permitAll, Boolean autoCloseFailedPullRequests,
+			String includedRegions, String excludedRegions, Integer batchSize) throws ANTLRException{
 		super(cron);
 		this.cron = cron;
 		this.triggerPhrase = triggerPhrase;
@@ -60,6 +68,9 @@ public final class GhprbTrigger extends Trigger<AbstractProject<?, ?>> {
 		this.useGitHubHooks = useGitHubHooks;
 		this.permitAll = permitAll;
 		this.autoCloseFailedPullRequests = autoCloseFailedPullRequests;
+		this.includedRegions = includedRegions;
+		this.excludedRegions = excludedRegions;
+		this.batchSize = batchSize;
 	}
 
 	@Override
@@ -86,6 +97,10 @@ public final class GhprbTrigger extends Trigger<AbstractProject<?, ?>> {
 		return ml;
 	}
 
+	AbstractProject<?, ?> getProject(){
+		return job;
+	}
+
 	@Override
 	public void stop() {
 		if(ml != null){
@@ -96,53 +111,39 @@ public final class GhprbTrigger extends Trigger<AbstractProject<?, ?>> {
 	}
 
 	public QueueTaskFuture<?> startJob(GhprbCause cause){
-		ArrayList<ParameterValue> values = getDefaultParameters();
+		// the other variables are derived from the cause by GhprbEnvironmentContributor
+		Map<String,String> vars = GhprbEnvironmentContributor.getVariables(cause);
+		ArrayList<ParameterValue> values = getDefaultParameters(vars);
+		// makes the parameters unique per cause, the queue folds a build into a queued one with equal parameters
+		values.add(new StringParameterValue("ghprbActualCommit", cause.getCommit()));
+		if(cause instanceof GhprbBatchCause){
+			// the job is expected to merge the member commits into the target branch itself
+			values.add(new StringParameterValue("sha1", "origin/" + cause.getTargetBranch()));
+			values.add(new StringParameterValue("ghprbBatchCommits", vars.get("ghprbBatchCommits")));
+			return this.job.scheduleBuild2(0,cause,new ParametersAction(values),GhprbTraceAction.queued());
+		}
 		values.add(new StringParameterValue("sha1", cause.isMerged() ? "origin/pr/" + cause.getPullID() + "/merge" : cause.getCommit()));
-		values.add(new StringParameterValue("ghprbActualCommit",cause.getCommit()));
-		final StringParameterValue pullIdPv = new StringParameterValue("ghprbPullId",String.valueOf(cause.getPullID()));
-		values.add(pullIdPv);
-		values.add(new StringParameterValue("ghprbTargetBranch",String.valueOf(cause.getTargetBranch())));
-		// Backward compatibility (GD)
-		values.add(new StringParameterValue("pull_id",String.valueOf(cause.getPullID())));
-		values.add(new StringParameterValue("base_branch",String.valueOf(cause.getTargetBranch())));
-		//
-		// it's possible the GHUser doesn't have an associated email address
-		values.add(new StringParameterValue("ghprbPullAuthorEmail",cause.getAuthorEmail() != null ? cause.getAuthorEmail() : ""));
-
 		// add the previous pr BuildData as an action so that the correct change log is generated by the GitSCM plugin
 		// note that this will be removed from the Actions list after the job is completed so that the old (and incorrect)
 		// one isn't there
-		return this.job.scheduleBuild2(0,cause,new ParametersAction(values),findPreviousBuildForPullId(pullIdPv));
+		return this.job.scheduleBuild2(0,cause,new ParametersAction(values),GhprbBuilds.findPreviousBuildForPullId(job.getBuilds(), cause.getPullID()),GhprbTraceAction.queued());
 	}
 	
-	/**
-	 * Find the previous BuildData for the given pull request number; this may return null
-	 */
-	private BuildData findPreviousBuildForPullId(StringParameterValue pullIdPv) {
-		// find the previous build for this particular pull requet, it may not be the last build
-		for (Run<?,?> r : job.getBuilds()) {
-			ParametersAction pa = r.getAction(ParametersAction.class);
-			if (pa != null) {
-				for (ParameterValue pv : pa.getParameters()) {
-					if (pv.equals(pullIdPv)) {
-						for (BuildData bd : r.getActions(BuildData.class)) {
-							return bd;
-						}
-					}
-				}
-			}
-		}
-		return null;
-	}
-
-	private ArrayList<ParameterValue> getDefaultParameters() {
+	// defaults of the job's parameters, those named as the build variables get their values instead
+	private ArrayList<ParameterValue> getDefaultParameters(Map<String,String> vars) {
 		ArrayList<ParameterValue> values = new ArrayList<ParameterValue>();
 		ParametersDefinitionProperty pdp = this.job.getProperty(ParametersDefinitionProperty.class);
 		if (pdp != null) {
 			for(ParameterDefinition pd :  pdp.getParameterDefinitions()) {
-				if (pd.getName().equals("sha1"))
+				String name = pd.getName();
+				// added by startJob
+				if (name.equals("sha1") || name.equals("ghprbActualCommit") || name.equals("ghprbBatchCommits"))
 					continue;
-				values.add(pd.getDefaultParameterValue());
+				if (vars.containsKey(name)) {
+					values.add(new StringParameterValue(name, vars.get(name)));
+				} else {
+					values.add(pd.getDefaultParameterValue());
+				}
 			}
 		}
 		return values;
@@ -150,9 +151,18 @@ public final class GhprbTrigger extends Trigger<AbstractProject<?, ?>> {
 
 	@Override
 	public void run() {
-		if (ml == null) return;
-		ml.run();
-		DESCRIPTOR.save();
+		final Ghprb ghprb = ml;
+		if (ghprb == null) return;
+		if (checking != null && !checking.isDone()) {
+			logger.log(Level.INFO, "Previous check of {0} is still running", job.getFullName());
+			return;
+		}
+		checking = GhprbGitHubExecutor.get().submit(new Runnable() {
+			public void run() {
+				ghprb.run();
+				DESCRIPTOR.save();
+			}
+		});
 	}
 
 	public String getCron() {
@@ -187,6 +197,31 @@ public final class GhprbTrigger extends Trigger<AbstractProject<?, ?>> {
 		}
 	}
 
+	/**
+	 * Returns how many mergeable pull requests targeting the same branch are built together, 0 if they aren't batched.
+	 */
+	public int getBatchSize() {
+		return batchSize != null ? batchSize : 0;
+	}
+
+	public String getIncludedRegions() {
+		return includedRegions;
+	}
+
+	public String getExcludedRegions() {
+		return excludedRegions;
+	}
+
+	/**
+	 * Returns the filter of changed files relevant for this job, or null if all changes are relevant.
+	 */
+	public GhprbPathFilter getPathFilter() {
+		if(pathFilter == null){
+			pathFilter = GhprbPathFilter.create(includedRegions, excludedRegions);
+		}
+		return pathFilter;
+	}
+
 	public static GhprbTrigger getTrigger(AbstractProject p){
 		Trigger trigger = p.getTrigger(GhprbTrigger.class);
 		if(trigger == null || (!(trigger instanceof GhprbTrigger))) return null;
@@ -210,13 +245,25 @@ public final class GhprbTrigger extends Trigger<AbstractProject<?, ?>> {
 		private String username;
 		private String password;
 		private String accessToken;
+		private List<Secret> additionalTokens = new ArrayList<Secret>();
+		// tokens one per line in clear text, as saved before they were kept encrypted
+		@Deprecated
+		private String additionalAccessTokens;
 		private String publishedURL;
 		private String okToTestPhrase = ".*ok\\W+to\\W+test.*";
+		private String forceRebuildPhrase = ".*force\\W+rebuild.*";
+		private int buildResultCacheMaxAge = 0;
+		private int maxMergeRebuildsPerCycle = 0;
+		private int maxQueuedBuilds = 0;
+		private int fullPollInterval = 1;
 		private String cron = "*/30 * * * *";
 		private Boolean useComments = false;
+		private Boolean editSummaryComment = false;
 		private int logExcerptLines = 0;
 		private String unstableAs = GHCommitState.FAILURE.name();
 		private Boolean autoCloseFailedPullRequests = false;
+		private int gitHubThreads = 8;
+		private int gitHubMaxRequestsPerHost = 4;
 		private String msgSuccess = "Test PASSED.";
 		private String msgFailure = "Test FAILED.";
 
@@ -230,6 +277,31 @@ public final class GhprbTrigger extends Trigger<AbstractProject<?, ?>> {
 			if(jobs == null){
 				jobs = new ConcurrentHashMap<String, Map<Integer,GhprbPullRequest>>();
 			}
+			// configurations saved before keep the pull requests in hash maps
+			for(Map.Entry<String, Map<Integer,GhprbPullRequest>> e : jobs.entrySet()){
+				if(!(e.getValue() instanceof GhprbPullRequestMap)){
+					e.setValue(new GhprbPullRequestMap(e.getValue()));
+				}
+			}
+			if(additionalTokens == null){
+				additionalTokens = new ArrayList<Secret>();
+			}
+			if(additionalAccessTokens != null){
+				for(String token : additionalAccessTokens.split("\\s+")){
+					if(!token.isEmpty()){
+						additionalTokens.add(Secret.fromString(token));
+					}
+				}
+				additionalAccessTokens = null;
+				save();
+			}
+		}
+
+		@Override
+		public synchronized void save() {
+			long start = System.nanoTime();
+			super.save();
+			GhprbMetrics.get().recordSave(start, getConfigFile().getFile().length());
 		}
 
 		@Override
@@ -248,20 +320,47 @@ public final class GhprbTrigger extends Trigger<AbstractProject<?, ?>> {
 			username = formData.getString("username");
 			password = formData.getString("password");
 			accessToken = formData.getString("accessToken");
+			additionalTokens = parseTokens(formData.opt("additionalTokens"));
 			publishedURL = formData.getString("publishedURL");
 			okToTestPhrase = formData.getString("okToTestPhrase");
+			forceRebuildPhrase = formData.getString("forceRebuildPhrase");
+			buildResultCacheMaxAge = formData.getInt("buildResultCacheMaxAge");
+			maxMergeRebuildsPerCycle = formData.getInt("maxMergeRebuildsPerCycle");
+			maxQueuedBuilds = formData.getInt("maxQueuedBuilds");
+			fullPollInterval = formData.getInt("fullPollInterval");
 			cron = formData.getString("cron");
 			useComments = formData.getBoolean("useComments");
+			editSummaryComment = formData.getBoolean("editSummaryComment");
 			logExcerptLines = formData.getInt("logExcerptLines");
 			unstableAs = formData.getString("unstableAs");
 			autoCloseFailedPullRequests = formData.getBoolean("autoCloseFailedPullRequests");
 			msgSuccess = formData.getString("msgSuccess");
 			msgFailure = formData.getString("msgFailure");
+			gitHubThreads = formData.getInt("gitHubThreads");
+			gitHubMaxRequestsPerHost = formData.getInt("gitHubMaxRequestsPerHost");
 			save();
 			gh = new GhprbGitHub();
+			GhprbGitHubExecutor.get().reconfigure();
 			return super.configure(req,formData);
 		}
 
+		// the repeatable sends nothing, one object or an array of them
+		private static List<Secret> parseTokens(Object tokens){
+			List<Secret> ret = new ArrayList<Secret>();
+			if(tokens instanceof JSONObject){
+				tokens = JSONArray.fromObject(tokens);
+			}
+			if(tokens instanceof JSONArray){
+				for(Object o : (JSONArray) tokens){
+					String token = ((JSONObject) o).getString("token").trim();
+					if(!token.isEmpty()){
+						ret.add(Secret.fromString(token));
+					}
+				}
+			}
+			return ret;
+		}
+
 		public FormValidation doCheckCron(@QueryParameter String value){
 			return (new TimerTrigger.DescriptorImpl().doCheckSpec(value));
 		}
@@ -284,6 +383,21 @@ public final class GhprbTrigger extends Trigger<AbstractProject<?, ?>> {
 			return accessToken;
 		}
 
+		public List<Secret> getAdditionalTokens() {
+			return additionalTokens;
+		}
+
+		/**
+		 * Access tokens used for reads besides the configured credentials, to spread the rate limit.
+		 */
+		public List<String> getAdditionalAccessTokenList() {
+			List<String> ret = new ArrayList<String>();
+			for(Secret token : additionalTokens){
+				ret.add(Secret.toString(token));
+			}
+			return ret;
+		}
+
 		public String getPublishedURL() {
 			return publishedURL;
 		}
@@ -292,6 +406,42 @@ public final class GhprbTrigger extends Trigger<AbstractProject<?, ?>> {
 			return okToTestPhrase;
 		}
 
+		public String getForceRebuildPhrase() {
+			if(forceRebuildPhrase == null){
+				return ".*force\\W+rebuild.*";
+			}
+			return forceRebuildPhrase;
+		}
+
+		/**
+		 * Max age in minutes of a build result that can be reused for unchanged pull request, 0 disables the reuse.
+		 */
+		public int getBuildResultCacheMaxAge() {
+			return buildResultCacheMaxAge;
+		}
+
+		/**
+		 * Max number of merged builds re-triggered per cycle after their target branch moved, 0 disables it.
+		 */
+		public int getMaxMergeRebuildsPerCycle() {
+			return maxMergeRebuildsPerCycle;
+		}
+
+		/**
+		 * Max number of queued builds of a job, further builds are deferred until some start. 0 disables it.
+		 */
+		public int getMaxQueuedBuilds() {
+			return maxQueuedBuilds;
+		}
+
+		/**
+		 * Poll cycles per full listing of open pull requests, the cycles in between list only updated ones.
+		 * 1 lists all of them in each cycle.
+		 */
+		public int getFullPollInterval() {
+			return fullPollInterval;
+		}
+
 		public String getCron() {
 			return cron;
 		}
@@ -328,10 +478,32 @@ public final class GhprbTrigger extends Trigger<AbstractProject<?, ?>> {
 			return msgFailure;
 		}
 
+		/**
+		 * Number of platform threads talking to GitHub, 0 to use virtual threads if available.
+		 */
+		public int getGitHubThreads() {
+			return gitHubThreads;
+		}
+
+		/**
+		 * Max number of tasks talking to one GitHub server at a time, 0 for no limit.
+		 */
+		public int getGitHubMaxRequestsPerHost() {
+			return gitHubMaxRequestsPerHost;
+		}
+
 		public boolean isUseComments(){
 			return (useComments != null && useComments);
 		}
 
+		public Boolean getEditSummaryComment() {
+			return editSummaryComment;
+		}
+
+		public boolean isEditSummaryComment(){
+			return (editSummaryComment != null && editSummaryComment);
+		}
+
 		public GhprbGitHub getGitHub(){
 			if(gh == null){
 				gh = new GhprbGitHub();
@@ -344,7 +516,7 @@ public final class GhprbTrigger extends Trigger<AbstractProject<?, ?>> {
 			if(jobs.containsKey(projectName)){
 				 ret = jobs.get(projectName);
 			}else{
-				ret = new ConcurrentHashMap<Integer, GhprbPullRequest>();
+				ret = new GhprbPullRequestMap();
 				jobs.put(projectName, ret);
 			}
 			return ret;
@@ -0,0 +1,409 @@
+package org.jenkinsci.plugins.ghprb;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import jenkins.model.Jenkins;
+
+/**
+ * Singleton append-only spool of accepted webhook deliveries under JENKINS_HOME, so a delivery
+ * acknowledged to GitHub isn't lost when Jenkins restarts or the job is being reconfigured while
+ * it is handled.
+ *
+ * A delivery is appended and forced to disk before it is acknowledged; concurrent deliveries share
+ * one force. Each delivery is then handled by every repository it is for, in the order they came per
+ * repository; a repository whose handling failed gets it again with exponential backoff. The checkpoint file holds the offset of the oldest
+ * delivery not handled yet, those from it on are handled again when Jenkins starts. The spool is
+ * emptied whenever it is over {@link #MAX_SIZE} and all its deliveries are handled.
+ *
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbWebhookSpool {
+
+	private static final Logger logger = Logger.getLogger(GhprbWebhookSpool.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String SPOOL_FILE = "ghprb-webhooks.spool";
+	private static final String CHECKPOINT_FILE = "ghprb-webhooks.checkpoint";
+	private static final long MAX_SIZE = 16 * 1024 * 1024;
+	private static final int MAX_ATTEMPTS = 5;
+	private static final long INITIAL_BACKOFF = 1000; // ms
+	private static GhprbWebhookSpool spool = new GhprbWebhookSpool();
+
+	public static GhprbWebhookSpool get(){
+		return spool;
+	}
+
+	// null for JENKINS_HOME
+	private final File root;
+	private FileChannel channel;
+	private RandomAccessFile checkpoint;
+	// end of the last appended delivery
+	private long written;
+	// offsets of deliveries not handled yet
+	private final TreeSet<Long> pending = new TreeSet<Long>();
+
+	private final Object syncLock = new Object();
+	// end of the deliveries forced to disk
+	private long synced;
+	private boolean syncing;
+
+	// only times the retries, the deliveries are handled by GhprbGitHubExecutor
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "GHPRB webhook spool retries");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private final AtomicLong spooled = new AtomicLong();
+	private final AtomicLong retried = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	static class Entry {
+		// -1 if the delivery couldn't be spooled
+		final long offset;
+		final String event;
+		final String delivery;
+		final String payload;
+		private final GhprbTraceAction trace;
+		private final long received;
+		// repositories which have handled the delivery
+		private final Set<GhprbRepository> handled = Collections.newSetFromMap(new ConcurrentHashMap<GhprbRepository,Boolean>());
+		private int attempts;
+
+		private Entry(long offset, String event, String delivery, String payload, GhprbTraceAction trace, long received){
+			this.offset = offset;
+			this.event = event;
+			this.delivery = delivery;
+			this.payload = payload;
+			this.trace = trace;
+			this.received = received;
+		}
+	}
+
+	private GhprbWebhookSpool(){
+		this(null);
+	}
+
+	// spool in the directory, for tests
+	GhprbWebhookSpool(File root){
+		this.root = root;
+	}
+
+	/**
+	 * Spools the delivery and starts handling it. When this returns, the delivery survives a restart of
+	 * Jenkins, unless the spool can't be written; then it is handled anyway and the failure is logged.
+	 * @param trace of the delivery, received at {@code received} taken from {@link System#nanoTime()}
+	 */
+	public void accept(String event, String delivery, String payload, GhprbTraceAction trace, long received){
+		long offset = -1;
+		try {
+			offset = append(event, delivery, payload);
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, "Couldn't spool delivery " + delivery + ", it will be lost if Jenkins stops before it is handled", ex);
+		}
+		process(new Entry(offset, event, delivery, payload, trace, received));
+	}
+
+	/**
+	 * Handles again the deliveries which weren't handled before Jenkins stopped. Requires the
+	 * repositories to be registered in {@link GhprbRepositoryCache}.
+	 */
+	public void replay(){
+		List<Entry> entries;
+		try {
+			entries = recover();
+		} catch (IOException ex) {
+			logger.log(Level.SEVERE, "Couldn't read the webhook spool, deliveries received before the restart are lost", ex);
+			return;
+		}
+		if(entries.isEmpty()) return;
+		logger.log(Level.INFO, "Replaying {0} webhook deliveries received before the restart", entries.size());
+		for(Entry entry : entries){
+			process(entry);
+		}
+	}
+
+	long append(String event, String delivery, String payload) throws IOException {
+		byte[] data = (nonNull(event) + '\n' + nonNull(delivery) + '\n' + payload).getBytes(UTF8);
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		ByteBuffer record = ByteBuffer.allocate(8 + data.length);
+		record.putInt(data.length);
+		record.putInt((int) crc.getValue());
+		record.put(data);
+		record.flip();
+
+		long offset;
+		long end;
+		synchronized(this){
+			open();
+			offset = written;
+			channel.position(offset);
+			while(record.hasRemaining()){
+				channel.write(record);
+			}
+			written = channel.position();
+			end = written;
+			pending.add(offset);
+		}
+		spooled.incrementAndGet();
+
+		try {
+			sync(end);
+		} catch (IOException ex) {
+			// handled without the spool, don't let it hold the checkpoint
+			synchronized(this){
+				pending.remove(offset);
+			}
+			throw ex;
+		}
+		return offset;
+	}
+
+	/**
+	 * Forces the spool to disk up to {@code end}. One of the callers waiting at the same time forces
+	 * everything appended so far for all of them.
+	 */
+	private void sync(long end) throws IOException {
+		while(true){
+			synchronized(syncLock){
+				while(synced < end && syncing){
+					try {
+						syncLock.wait();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while spooling a webhook delivery");
+					}
+				}
+				if(synced >= end) return;
+				syncing = true;
+			}
+			long target = 0;
+			boolean done = false;
+			try {
+				FileChannel channel;
+				synchronized(this){
+					target = written;
+					channel = this.channel;
+				}
+				channel.force(false);
+				done = true;
+			} finally {
+				synchronized(syncLock){
+					syncing = false;
+					if(done && target > synced) synced = target;
+					syncLock.notifyAll();
+				}
+			}
+		}
+	}
+
+	private void process(final Entry entry){
+		final GhprbRootAction.Hook hook;
+		try {
+			hook = GhprbRootAction.parse(entry.event, entry.payload);
+		} catch (IOException ex) {
+			// it won't parse next time either
+			logger.log(Level.SEVERE, "Failed to parse github hook payload.", ex);
+			GhprbMetrics.get().recordWebhook(entry.received, false);
+			acknowledge(entry);
+			return;
+		}
+		if(hook == null){
+			acknowledge(entry);
+			return;
+		}
+
+		List<GhprbRepository> repos = new ArrayList<GhprbRepository>();
+		for(GhprbRepository repo : hook.getRepos()){
+			if(!entry.handled.contains(repo)) repos.add(repo);
+		}
+		if(repos.isEmpty()){
+			acknowledge(entry);
+			return;
+		}
+
+		final AtomicInteger remaining = new AtomicInteger(repos.size());
+		final AtomicInteger failed = new AtomicInteger();
+		for(final GhprbRepository repo : repos){
+			logger.log(Level.INFO, "Payload: {0} for {1}", new Object[]{entry.event, repo.getRepoUrl()});
+			// in order per repository, e.g. of two synchronize events the later head has to win
+			GhprbGitHubExecutor.get().submitSerial(repo, new Runnable() {
+				public void run() {
+					GhprbTraceAction.begin(entry.trace.copy());
+					boolean success = false;
+					try {
+						hook.handle(repo);
+						entry.handled.add(repo);
+						success = true;
+					} catch (IOException ex) {
+						logger.log(Level.SEVERE, "Failed to process " + entry.event + " hook for " + repo.getName(), ex);
+					} catch (RuntimeException ex) {
+						logger.log(Level.SEVERE, "Failed to process " + entry.event + " hook for " + repo.getName(), ex);
+					} finally {
+						GhprbTraceAction.end();
+						GhprbMetrics.get().recordWebhook(entry.received, success);
+						if(!success) failed.incrementAndGet();
+						if(remaining.decrementAndGet() == 0){
+							finished(entry, failed.get() > 0);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	private void finished(final Entry entry, boolean failed){
+		if(!failed){
+			acknowledge(entry);
+			return;
+		}
+		if(++entry.attempts >= MAX_ATTEMPTS){
+			dropped.incrementAndGet();
+			logger.log(Level.SEVERE, "Giving up {0} hook delivery {1} after {2} attempts", new Object[]{entry.event, entry.delivery, entry.attempts});
+			acknowledge(entry);
+			return;
+		}
+		retried.incrementAndGet();
+		executor.schedule(new Runnable() {
+			public void run() {
+				process(entry);
+			}
+		}, INITIAL_BACKOFF << (entry.attempts - 1), TimeUnit.MILLISECONDS);
+	}
+
+	synchronized void acknowledge(Entry entry){
+		if(entry.offset < 0) return;
+		pending.remove(entry.offset);
+		try {
+			writeCheckpoint(pending.isEmpty() ? written : pending.first());
+			if(pending.isEmpty() && written > MAX_SIZE){
+				// everything is handled, start over
+				writeCheckpoint(0);
+				channel.truncate(0);
+				written = 0;
+				synchronized(syncLock){
+					synced = 0;
+				}
+			}
+		} catch (IOException ex) {
+			// the handled deliveries would be handled again after a restart
+			logger.log(Level.WARNING, "Couldn't update the webhook spool checkpoint", ex);
+		}
+	}
+
+	/**
+	 * Opens the spool and returns the deliveries after the checkpoint. A record cut off by a crash
+	 * ends the spool.
+	 */
+	synchronized List<Entry> recover() throws IOException {
+		open();
+		List<Entry> ret = new ArrayList<Entry>();
+		checkpoint.seek(0);
+		long offset = checkpoint.length() >= 8 ? checkpoint.readLong() : 0;
+		long size = channel.size();
+		if(offset > size) offset = size;
+		while(offset < size){
+			Entry entry = read(offset, size);
+			if(entry == null){
+				logger.log(Level.WARNING, "Webhook spool is corrupted at {0}, discarding the rest", offset);
+				channel.truncate(offset);
+				break;
+			}
+			ret.add(entry);
+			pending.add(offset);
+			offset = channel.position();
+		}
+		written = channel.size();
+		synchronized(syncLock){
+			synced = written;
+		}
+		return ret;
+	}
+
+	// returns null if the record is incomplete or damaged
+	private Entry read(long offset, long size) throws IOException {
+		if(size - offset < 8) return null;
+		ByteBuffer header = ByteBuffer.allocate(8);
+		channel.position(offset);
+		readFully(header);
+		int length = header.getInt(0);
+		int crc = header.getInt(4);
+		if(length < 0 || length > size - offset - 8) return null;
+
+		ByteBuffer data = ByteBuffer.allocate(length);
+		readFully(data);
+		CRC32 check = new CRC32();
+		check.update(data.array());
+		if((int) check.getValue() != crc) return null;
+
+		String[] fields = new String(data.array(), UTF8).split("\n", 3);
+		if(fields.length < 3) return null;
+		return new Entry(offset, fields[0], fields[1], fields[2], GhprbTraceAction.received(), System.nanoTime());
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()){
+			if(channel.read(buffer) < 0) throw new EOFException();
+		}
+	}
+
+	private void open() throws IOException {
+		if(channel != null) return;
+		File root = this.root != null ? this.root : Jenkins.getInstance().getRootDir();
+		channel = new RandomAccessFile(new File(root, SPOOL_FILE), "rw").getChannel();
+		checkpoint = new RandomAccessFile(new File(root, CHECKPOINT_FILE), "rw");
+		written = channel.size();
+		synced = written;
+	}
+
+	private void writeCheckpoint(long offset) throws IOException {
+		checkpoint.seek(0);
+		checkpoint.writeLong(offset);
+	}
+
+	private static String nonNull(String s){
+		return s == null ? "" : s;
+	}
+
+	/**
+	 * Returns how many spooled deliveries aren't handled yet.
+	 */
+	public synchronized int getPendingCount(){
+		return pending.size();
+	}
+
+	public long getSpooledCount(){
+		return spooled.get();
+	}
+
+	public long getRetriedCount(){
+		return retried.get();
+	}
+
+	public long getDroppedCount(){
+		return dropped.get();
+	}
+}
@@ -0,0 +1,87 @@
+package org.jenkinsci.plugins.ghprb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import hudson.model.FreeStyleProject;
+import java.util.Arrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.kohsuke.github.GHCommitState;
+
+/**
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbBuildResultCacheTest {
+	private static final long MAX_AGE = 3600000;
+
+	@Rule
+	public JenkinsRule jenkins = new JenkinsRule();
+
+	private static GhprbCause cause(int id, String head, String base, boolean merged){
+		return new GhprbCause(head, id, merged, "master", base, null, "Pull request " + id);
+	}
+
+	@Test
+	public void reusesResultsOfTheSameContent() throws Exception {
+		FreeStyleProject job = jenkins.createFreeStyleProject("job");
+		GhprbBuildResultCache cache = new GhprbBuildResultCache();
+		long now = System.currentTimeMillis();
+		cache.put(job.getFullName(), cause(1, "head", "base", true), GHCommitState.FAILURE, "url", "Merged build finished.", 7, now);
+
+		GhprbBuildResultCache.Entry entry = cache.lookup(job, "head", "base", true, MAX_AGE);
+		assertEquals(GHCommitState.FAILURE, entry.getState());
+		assertEquals("url", entry.getUrl());
+		assertEquals(7, entry.getBuildNumber());
+
+		assertNull(cache.lookup(job, "other", "base", true, MAX_AGE));
+		assertNull(cache.lookup(job, "head", "moved", true, MAX_AGE));
+		assertNull(cache.lookup(job, "head", "base", false, MAX_AGE));
+		assertNull(cache.lookup(job, "head", null, true, MAX_AGE));
+		assertNull(cache.lookup(jenkins.createFreeStyleProject("other"), "head", "base", true, MAX_AGE));
+	}
+
+	@Test
+	public void forgetsOldResults() throws Exception {
+		FreeStyleProject job = jenkins.createFreeStyleProject("job");
+		GhprbBuildResultCache cache = new GhprbBuildResultCache();
+		cache.put(job.getFullName(), cause(1, "head", "base", false), GHCommitState.SUCCESS, "url", "Build finished.", 1, System.currentTimeMillis() - 2 * MAX_AGE);
+		assertNull(cache.lookup(job, "head", "base", false, MAX_AGE));
+	}
+
+	@Test
+	public void ignoresCausesWithoutTheTargetBranchCommit() throws Exception {
+		FreeStyleProject job = jenkins.createFreeStyleProject("job");
+		GhprbBuildResultCache cache = new GhprbBuildResultCache();
+		cache.put(job.getFullName(), cause(1, "head", null, false), GHCommitState.SUCCESS, "url", "Build finished.", 1, System.currentTimeMillis());
+		assertNull(cache.lookup(job, "head", "base", false, MAX_AGE));
+	}
+
+	@Test
+	public void loadsResultsFromTheBuildHistoryOnce() throws Exception {
+		FreeStyleProject job = jenkins.createFreeStyleProject("job");
+		jenkins.assertBuildStatusSuccess(job.scheduleBuild2(0, cause(1, "head", "base", false)));
+		jenkins.assertBuildStatusSuccess(job.scheduleBuild2(0, cause(1, "head", "base", false)));
+
+		GhprbBuildResultCache cache = new GhprbBuildResultCache();
+		GhprbBuildResultCache.Entry entry = cache.lookup(job, "head", "base", false, MAX_AGE);
+		assertEquals(GHCommitState.SUCCESS, entry.getState());
+		// the newest build of the content
+		assertEquals(2, entry.getBuildNumber());
+		assertEquals("Build finished.", entry.getMessage());
+
+		// later builds are put by GhprbBuilds when they complete
+		jenkins.assertBuildStatusSuccess(job.scheduleBuild2(0, cause(2, "next", "base", false)));
+		assertNull(cache.lookup(job, "next", "base", false, MAX_AGE));
+	}
+
+	@Test
+	public void doesntReuseResultsOfBatches() throws Exception {
+		FreeStyleProject job = jenkins.createFreeStyleProject("job");
+		GhprbCause lead = cause(1, "head", "base", true);
+		jenkins.assertBuildStatusSuccess(job.scheduleBuild2(0, new GhprbBatchCause(Arrays.asList(lead, cause(2, "other", "base", true)))));
+
+		assertNull(new GhprbBuildResultCache().lookup(job, "head", "base", true, MAX_AGE));
+	}
+}
@@ -0,0 +1,128 @@
+package org.jenkinsci.plugins.ghprb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import hudson.console.ConsoleNote;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbLogTailTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = File.createTempFile("ghprb-log", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void deleteDir() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private File write(String name, String content, Charset charset) throws IOException {
+		File log = new File(dir, name);
+		OutputStream out = new FileOutputStream(log);
+		try {
+			if(name.endsWith(".gz")) out = new GZIPOutputStream(out);
+			out.write(content.getBytes(charset));
+		} finally {
+			out.close();
+		}
+		return log;
+	}
+
+	private static String lines(int from, int to){
+		StringBuilder sb = new StringBuilder();
+		for(int i = from; i <= to; i++){
+			sb.append("line ").append(i).append('\n');
+		}
+		return sb.toString();
+	}
+
+	private static List<String> expected(int from, int to){
+		List<String> ret = new ArrayList<String>();
+		for(int i = from; i <= to; i++){
+			ret.add("line " + i);
+		}
+		return ret;
+	}
+
+	@Test
+	public void readsTheLastLines() throws IOException {
+		File log = write("log", lines(1, 10), UTF8);
+		assertEquals(expected(8, 10), GhprbLogTail.tail(log, UTF8, 3, 1024));
+		assertEquals(expected(1, 10), GhprbLogTail.tail(log, UTF8, 20, 1024));
+		assertEquals(expected(1, 0), GhprbLogTail.tail(log, UTF8, 0, 1024));
+	}
+
+	@Test
+	public void readsALogWithoutTrailingLineFeed() throws IOException {
+		File log = write("log", "first\r\nsecond\r\nlast", UTF8);
+		assertEquals(Arrays.asList("second", "last"), GhprbLogTail.tail(log, UTF8, 2, 1024));
+	}
+
+	@Test
+	public void readsAcrossBlocks() throws IOException {
+		// way more than one block
+		File log = write("log", lines(1, 5000), UTF8);
+		assertEquals(expected(4001, 5000), GhprbLogTail.tail(log, UTF8, 1000, 1024 * 1024));
+	}
+
+	@Test
+	public void dropsTheLineCutByTheByteLimit() throws IOException {
+		File log = write("log", lines(1, 100), UTF8);
+		List<String> tail = GhprbLogTail.tail(log, UTF8, 50, 100);
+		assertTrue(tail.size() < 50);
+		assertEquals(expected(101 - tail.size(), 100), tail);
+	}
+
+	@Test
+	public void streamsGzippedLogs() throws IOException {
+		File log = write("log.gz", lines(1, 10), UTF8);
+		assertEquals(expected(8, 10), GhprbLogTail.tail(log, UTF8, 3, 1024));
+
+		List<String> tail = GhprbLogTail.tail(write("big.gz", lines(1, 100), UTF8), UTF8, 50, 100);
+		assertTrue(tail.size() < 50);
+		assertEquals(expected(101 - tail.size(), 100), tail);
+	}
+
+	@Test
+	public void streamsLogsInOtherCharsets() throws IOException {
+		Charset utf16 = Charset.forName("UTF-16BE");
+		File log = write("log", lines(1, 10), utf16);
+		assertEquals(expected(9, 10), GhprbLogTail.tail(log, utf16, 2, 1024));
+	}
+
+	@Test
+	public void stripsConsoleNotes() throws IOException {
+		String note = ConsoleNote.PREAMBLE_STR + "c29tZSBub3Rl" + ConsoleNote.POSTAMBLE_STR;
+		File log = write("log", "first\n" + note + "Started\n", UTF8);
+		assertEquals(Arrays.asList("Started"), GhprbLogTail.tail(log, UTF8, 1, 1024));
+		File gz = write("log.gz", "first\n" + note + "Started\n", UTF8);
+		assertEquals(Arrays.asList("Started"), GhprbLogTail.tail(gz, UTF8, 1, 1024));
+	}
+
+	@Test
+	public void missingLogHasNoLines() throws IOException {
+		assertTrue(GhprbLogTail.tail(new File(dir, "missing"), UTF8, 10, 1024).isEmpty());
+	}
+}
@@ -0,0 +1,73 @@
+package org.jenkinsci.plugins.ghprb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+/**
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbPathFilterTest {
+
+	private static boolean matches(String glob, String path){
+		return GhprbPathFilter.toPattern(glob).matcher(path).matches();
+	}
+
+	@Test
+	public void singleWildcardsStayInTheirDirectory() {
+		assertTrue(matches("*.java", "Foo.java"));
+		assertFalse(matches("*.java", "src/Foo.java"));
+		assertTrue(matches("src/?oo.java", "src/Foo.java"));
+		assertFalse(matches("src/?oo.java", "src//oo.java"));
+	}
+
+	@Test
+	public void doubleWildcardsCrossDirectories() {
+		assertTrue(matches("**/*.java", "Foo.java"));
+		assertTrue(matches("**/*.java", "src/main/Foo.java"));
+		assertTrue(matches("src/**", "src/main/Foo.java"));
+		assertTrue(matches("src/**/test/*", "src/test/Foo.java"));
+		assertTrue(matches("src/**/test/*", "src/a/b/test/Foo.java"));
+		assertFalse(matches("src/**/test/*", "src/test/a/Foo.java"));
+	}
+
+	@Test
+	public void trailingSlashMatchesTheDirectory() {
+		assertTrue(matches("docs/", "docs/index.md"));
+		assertTrue(matches("/docs/", "docs/api/index.md"));
+		assertFalse(matches("docs/", "docs"));
+		assertFalse(matches("docs/", "src/docs/index.md"));
+	}
+
+	@Test
+	public void otherCharactersAreLiteral() {
+		assertTrue(matches("a.b+(c)[d]$", "a.b+(c)[d]$"));
+		assertFalse(matches("a.b", "axb"));
+		assertEquals(Pattern.quote("."), GhprbPathFilter.toPattern(".").pattern());
+	}
+
+	@Test
+	public void noGlobsMeansNoFilter() {
+		assertNull(GhprbPathFilter.create(null, null));
+		assertNull(GhprbPathFilter.create("", " \n\r\n "));
+	}
+
+	@Test
+	public void relevantIfAnyFileIsIncludedAndNotExcluded() {
+		GhprbPathFilter filter = GhprbPathFilter.create("src/\r\npom.xml\n", "src/**/*.md");
+		assertTrue(filter.isRelevant(Arrays.asList("README.md", "pom.xml")));
+		assertTrue(filter.isRelevant(Arrays.asList("src/docs/a.md", "src/Main.java")));
+		assertFalse(filter.isRelevant(Arrays.asList("README.md", "src/docs/a.md")));
+		assertFalse(filter.isRelevant(Collections.<String>emptyList()));
+
+		GhprbPathFilter excludesOnly = GhprbPathFilter.create(null, "docs/");
+		assertTrue(excludesOnly.isRelevant(Arrays.asList("docs/a.md", "Main.java")));
+		assertFalse(excludesOnly.isRelevant(Arrays.asList("docs/a.md")));
+	}
+}
@@ -0,0 +1,110 @@
+package org.jenkinsci.plugins.ghprb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+/**
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbPhraseMatcherTest {
+
+	private static final String OK_TO_TEST = ".*ok\\W+to\\W+test.*";
+	private static final String FORCE_REBUILD = ".*force\\W+rebuild.*";
+
+	@Test
+	public void compileSingleLineDropsLeadingAndTrailingWildcards() {
+		assertEquals("(?:ok\\W+to\\W+test)", GhprbPhraseMatcher.compileSingleLine(OK_TO_TEST).pattern());
+		assertEquals("\\A(?:test this)", GhprbPhraseMatcher.compileSingleLine("test this.*").pattern());
+		assertEquals("(?:retest)\\z", GhprbPhraseMatcher.compileSingleLine(".*retest").pattern());
+	}
+
+	@Test
+	public void compileSingleLineKeepsWhatItCantRewrite() {
+		// nothing to drop
+		assertNull(GhprbPhraseMatcher.compileSingleLine("ok to test"));
+		// other quantifiers
+		assertNull(GhprbPhraseMatcher.compileSingleLine(".*?test"));
+		assertNull(GhprbPhraseMatcher.compileSingleLine(".*+test"));
+		// escaped dot
+		assertNull(GhprbPhraseMatcher.compileSingleLine("test\\.*"));
+		// the wildcards belong to the alternatives
+		assertNull(GhprbPhraseMatcher.compileSingleLine(".*ok|retest.*"));
+		assertNull(GhprbPhraseMatcher.compileSingleLine("\\Q.*\\E.*"));
+		// alternation in a group or a class is fine
+		assertNotNull(GhprbPhraseMatcher.compileSingleLine(".*(ok|retest).*"));
+		assertNotNull(GhprbPhraseMatcher.compileSingleLine(".*[|]test.*"));
+		assertNotNull(GhprbPhraseMatcher.compileSingleLine(".*[]|]test.*"));
+	}
+
+	@Test
+	public void matchesLikeTheOriginalExpressions() {
+		String[] regexes = {OK_TO_TEST, FORCE_REBUILD, "test this.*", ".*retest", ".*(ok|retest).*", ".*[]|]x.*", ".*a|b.*", "ok to test"};
+		String[] comments = {"", "ok to test", "please ok  to test this", "ok to\ntest", "ok to test\nthanks",
+				"force rebuild", "test this please", "do test this", "retest", "retest now", "x|x", "]x", "a", "b", "ab",
+				"line\r\nok to test", "ok to test\u2028"};
+		GhprbPhraseMatcher matcher = new GhprbPhraseMatcher();
+		for(String regex : regexes){
+			matcher.register(regex, regex, null);
+		}
+		for(String comment : comments){
+			GhprbPhraseMatcher.Match match = matcher.match(comment);
+			for(String regex : regexes){
+				assertEquals(regex + " on " + comment, Pattern.matches(regex, comment), match.matches(regex));
+			}
+		}
+	}
+
+	@Test
+	public void findsAllLiteralPhrasesInOnePass() {
+		GhprbPhraseMatcher.AhoCorasick automaton = new GhprbPhraseMatcher.AhoCorasick(Arrays.asList("he", "she", "his", "hers", "x"));
+		assertTrue(Arrays.equals(new boolean[]{true, true, false, true, false}, automaton.match("ushers")));
+		assertTrue(Arrays.equals(new boolean[]{false, false, true, false, false}, automaton.match("this")));
+		assertTrue(Arrays.equals(new boolean[5], automaton.match("")));
+		// the phrase is found through a fail link
+		assertTrue(Arrays.equals(new boolean[]{true}, new GhprbPhraseMatcher.AhoCorasick(Arrays.asList("abd")).match("aabd")));
+	}
+
+	@Test
+	public void matchesRegisteredPhrasesOnly() {
+		GhprbPhraseMatcher matcher = new GhprbPhraseMatcher();
+		matcher.register(OK_TO_TEST, FORCE_REBUILD, "jenkins build");
+		matcher.register(OK_TO_TEST, FORCE_REBUILD, "");
+
+		GhprbPhraseMatcher.Match match = matcher.match("please jenkins build this, ok to test");
+		assertTrue(match.contains("jenkins build"));
+		assertTrue(match.matches(OK_TO_TEST));
+		assertFalse(match.matches(FORCE_REBUILD));
+		assertFalse(match.contains(""));
+		assertFalse(match.contains("other"));
+
+		matcher.unregister(OK_TO_TEST, FORCE_REBUILD, "jenkins build");
+		match = matcher.match("please jenkins build this, ok to test");
+		assertFalse(match.contains("jenkins build"));
+		// still used by the other job
+		assertTrue(match.matches(OK_TO_TEST));
+	}
+
+	@Test
+	public void dropsTheSharedMatcherWithItsLastJob() {
+		String repo = "https://github.com/owner/phrases";
+		GhprbPhraseMatcher matcher = GhprbPhraseMatcher.get(repo);
+		assertSame(matcher, GhprbPhraseMatcher.get(repo));
+		matcher.register(OK_TO_TEST, FORCE_REBUILD, "build");
+		matcher.register(OK_TO_TEST, FORCE_REBUILD, "build");
+
+		matcher.unregister(OK_TO_TEST, FORCE_REBUILD, "build");
+		assertTrue(GhprbPhraseMatcher.isShared(repo));
+		matcher.unregister(OK_TO_TEST, FORCE_REBUILD, "build");
+		assertFalse(GhprbPhraseMatcher.isShared(repo));
+		assertNotSame(matcher, GhprbPhraseMatcher.get(repo));
+	}
+}
@@ -0,0 +1,130 @@
+package org.jenkinsci.plugins.ghprb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import hudson.util.XStream2;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbPullRequestMapTest {
+
+	private static final XStream2 xstream = new XStream2();
+
+	private static GhprbPullRequest pull(int id){
+		return (GhprbPullRequest) xstream.fromXML("<org.jenkinsci.plugins.ghprb.GhprbPullRequest>"
+				+ "<id>" + id + "</id><head>" + id + "</head>"
+				+ "</org.jenkinsci.plugins.ghprb.GhprbPullRequest>");
+	}
+
+	private static List<Integer> keys(Map<Integer,GhprbPullRequest> pulls){
+		List<Integer> ret = new ArrayList<Integer>();
+		for(Map.Entry<Integer,GhprbPullRequest> e : pulls.entrySet()){
+			assertEquals(e.getKey().intValue(), e.getValue().getId());
+			ret.add(e.getKey());
+		}
+		return ret;
+	}
+
+	@Test
+	public void keepsPullRequestsSortedByNumber() {
+		GhprbPullRequestMap pulls = new GhprbPullRequestMap();
+		for(int id : new int[]{5, 1, 9, 3, 7}){
+			assertNull(pulls.put(id, pull(id)));
+		}
+		assertEquals(5, pulls.size());
+		assertEquals(Arrays.asList(1, 3, 5, 7, 9), keys(pulls));
+		for(int id : new int[]{1, 3, 5, 7, 9}){
+			assertEquals(id, pulls.get(id).getId());
+			assertTrue(pulls.containsKey(id));
+		}
+		for(int id : new int[]{0, 2, 4, 6, 8, 10}){
+			assertNull(pulls.get(id));
+			assertFalse(pulls.containsKey(id));
+		}
+		assertNull(pulls.get("5"));
+	}
+
+	@Test
+	public void replacesAndRemoves() {
+		GhprbPullRequestMap pulls = new GhprbPullRequestMap();
+		GhprbPullRequest first = pull(2);
+		pulls.put(2, first);
+		pulls.put(4, pull(4));
+		GhprbPullRequest second = pull(2);
+		assertSame(first, pulls.put(2, second));
+		assertSame(second, pulls.get(2));
+		assertEquals(2, pulls.size());
+
+		assertSame(second, pulls.remove(2));
+		assertNull(pulls.remove(2));
+		assertNull(pulls.remove("4"));
+		assertEquals(Arrays.asList(4), keys(pulls));
+
+		pulls.clear();
+		assertTrue(pulls.isEmpty());
+	}
+
+	@Test
+	public void refusesAPullRequestUnderAnotherNumber() {
+		GhprbPullRequestMap pulls = new GhprbPullRequestMap();
+		try {
+			pulls.put(1, pull(2));
+			fail("put under a wrong number");
+		} catch (IllegalArgumentException ex) {
+			// expected
+		}
+		assertTrue(pulls.isEmpty());
+	}
+
+	@Test
+	public void iteratesOverASnapshot() {
+		GhprbPullRequestMap pulls = new GhprbPullRequestMap();
+		pulls.put(1, pull(1));
+		pulls.put(2, pull(2));
+		Iterator<Map.Entry<Integer,GhprbPullRequest>> it = pulls.entrySet().iterator();
+		assertEquals(1, it.next().getKey().intValue());
+		pulls.remove(2);
+		pulls.put(3, pull(3));
+		assertEquals(2, it.next().getKey().intValue());
+		assertFalse(it.hasNext());
+		assertEquals(Arrays.asList(1, 3), keys(pulls));
+	}
+
+	@Test
+	public void copiesAnotherMap() {
+		Map<Integer,GhprbPullRequest> legacy = new HashMap<Integer,GhprbPullRequest>();
+		for(int id = 10; id > 0; id--){
+			legacy.put(id, pull(id));
+		}
+		GhprbPullRequestMap pulls = new GhprbPullRequestMap(legacy);
+		assertEquals(legacy, pulls);
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10), keys(pulls));
+	}
+
+	@Test
+	public void survivesSerialization() {
+		GhprbPullRequestMap pulls = new GhprbPullRequestMap();
+		pulls.put(3, pull(3));
+		pulls.put(1, pull(1));
+		GhprbPullRequestMap loaded = (GhprbPullRequestMap) xstream.fromXML(xstream.toXML(pulls));
+		assertEquals(Arrays.asList(1, 3), keys(loaded));
+		assertEquals("3", loaded.get(3).getHead());
+
+		GhprbPullRequestMap empty = (GhprbPullRequestMap) xstream.fromXML(xstream.toXML(new GhprbPullRequestMap()));
+		assertTrue(empty.isEmpty());
+		assertNull(empty.get(1));
+	}
+}
@@ -0,0 +1,156 @@
+package org.jenkinsci.plugins.ghprb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Pavol Gressa <pavol.gressa@gooddata.com>
+ */
+public class GhprbWebhookSpoolTest {
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = File.createTempFile("ghprb-spool", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void deleteDir() throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	// the spool as Jenkins would open it after a restart
+	private List<GhprbWebhookSpool.Entry> restart() throws IOException {
+		return new GhprbWebhookSpool(dir).recover();
+	}
+
+	private File spoolFile(){
+		return new File(dir, "ghprb-webhooks.spool");
+	}
+
+	@Test
+	public void replaysDeliveriesInOrder() throws IOException {
+		GhprbWebhookSpool spool = new GhprbWebhookSpool(dir);
+		long first = spool.append("push", "d1", "{\"ref\":\"refs/heads/master\"}");
+		long second = spool.append("issue_comment", "d2", "{\"body\":\"ok\\nto test \u00e9\"}");
+		spool.append(null, null, "");
+
+		GhprbWebhookSpool restarted = new GhprbWebhookSpool(dir);
+		List<GhprbWebhookSpool.Entry> entries = restarted.recover();
+		assertEquals(3, entries.size());
+		assertEquals(3, restarted.getPendingCount());
+		assertEquals(first, entries.get(0).offset);
+		assertEquals("push", entries.get(0).event);
+		assertEquals("d1", entries.get(0).delivery);
+		assertEquals("{\"ref\":\"refs/heads/master\"}", entries.get(0).payload);
+		assertEquals(second, entries.get(1).offset);
+		assertEquals("{\"body\":\"ok\\nto test \u00e9\"}", entries.get(1).payload);
+		assertEquals("", entries.get(2).event);
+		assertEquals("", entries.get(2).delivery);
+		assertEquals("", entries.get(2).payload);
+	}
+
+	@Test
+	public void replaysFromTheOldestUnhandledDelivery() throws IOException {
+		GhprbWebhookSpool spool = new GhprbWebhookSpool(dir);
+		spool.append("push", "d1", "{}");
+		spool.append("push", "d2", "{}");
+		spool.append("push", "d3", "{}");
+
+		GhprbWebhookSpool restarted = new GhprbWebhookSpool(dir);
+		List<GhprbWebhookSpool.Entry> entries = restarted.recover();
+		// d1 still holds the checkpoint
+		restarted.acknowledge(entries.get(1));
+		assertEquals(3, restart().size());
+
+		restarted.acknowledge(entries.get(0));
+		List<GhprbWebhookSpool.Entry> left = restart();
+		assertEquals(1, left.size());
+		assertEquals("d3", left.get(0).delivery);
+
+		restarted.acknowledge(entries.get(2));
+		assertTrue(restart().isEmpty());
+		assertEquals(0, restarted.getPendingCount());
+	}
+
+	@Test
+	public void appendsAfterReplayedDeliveries() throws IOException {
+		new GhprbWebhookSpool(dir).append("push", "d1", "{}");
+		GhprbWebhookSpool restarted = new GhprbWebhookSpool(dir);
+		assertEquals(1, restarted.recover().size());
+		restarted.append("push", "d2", "{}");
+
+		List<GhprbWebhookSpool.Entry> entries = restart();
+		assertEquals(2, entries.size());
+		assertEquals("d2", entries.get(1).delivery);
+	}
+
+	@Test
+	public void discardsTheRestAfterADamagedRecord() throws IOException {
+		GhprbWebhookSpool spool = new GhprbWebhookSpool(dir);
+		spool.append("push", "d1", "{}");
+		long second = spool.append("push", "d2", "{\"after\":\"abc\"}");
+		spool.append("push", "d3", "{}");
+
+		// flip a byte of the second payload, its CRC doesn't match
+		RandomAccessFile raf = new RandomAccessFile(spoolFile(), "rw");
+		try {
+			raf.seek(second + 8 + "push\nd2\n".length() + 3);
+			int b = raf.read();
+			raf.seek(second + 8 + "push\nd2\n".length() + 3);
+			raf.write(b ^ 0xff);
+		} finally {
+			raf.close();
+		}
+
+		List<GhprbWebhookSpool.Entry> entries = restart();
+		assertEquals(1, entries.size());
+		assertEquals("d1", entries.get(0).delivery);
+		assertEquals(second, spoolFile().length());
+	}
+
+	@Test
+	public void discardsARecordCutOffByACrash() throws IOException {
+		GhprbWebhookSpool spool = new GhprbWebhookSpool(dir);
+		spool.append("push", "d1", "{}");
+		long second = spool.append("push", "d2", "{}");
+
+		RandomAccessFile raf = new RandomAccessFile(spoolFile(), "rw");
+		try {
+			raf.setLength(raf.length() - 1);
+		} finally {
+			raf.close();
+		}
+
+		List<GhprbWebhookSpool.Entry> entries = restart();
+		assertEquals(1, entries.size());
+		assertEquals(second, spoolFile().length());
+
+		// a header cut off
+		raf = new RandomAccessFile(spoolFile(), "rw");
+		try {
+			raf.setLength(second + 3);
+		} finally {
+			raf.close();
+		}
+		assertEquals(1, restart().size());
+		assertEquals(second, spoolFile().length());
+	}
+
+	@Test
+	public void emptySpoolHasNothingToReplay() throws IOException {
+		assertTrue(restart().isEmpty());
+	}
+}